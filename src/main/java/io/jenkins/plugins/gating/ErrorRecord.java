@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) Red Hat, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.jenkins.plugins.gating;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import java.util.Date;
+
+/**
+ * Errors reported for a source label since its last successful update.
+ *
+ * Only the latest error is retained, the earlier ones are counted.
+ */
+public final class ErrorRecord {
+    private final @Nonnull MetricsSnapshot.Error latest;
+    private final long firstSeen;
+    private final int count;
+
+    private ErrorRecord(@Nonnull MetricsSnapshot.Error latest, long firstSeen, int count) {
+        this.latest = latest;
+        this.firstSeen = firstSeen;
+        this.count = count;
+    }
+
+    /**
+     * Account for the error reported after the previous ones.
+     */
+    /*package*/ static @Nonnull ErrorRecord next(@CheckForNull ErrorRecord previous, @Nonnull MetricsSnapshot.Error error) {
+        return previous == null
+                ? new ErrorRecord(error, error.getCreated().getTime(), 1)
+                : new ErrorRecord(error, previous.firstSeen, previous.count == Integer.MAX_VALUE ? previous.count : previous.count + 1)
+        ;
+    }
+
+    /**
+     * The error reported last.
+     */
+    public @Nonnull MetricsSnapshot.Error getLatest() {
+        return latest;
+    }
+
+    /**
+     * Number of errors reported since the last successful update.
+     */
+    public int getCount() {
+        return count;
+    }
+
+    public @Nonnull Date getFirstSeen() {
+        return new Date(firstSeen);
+    }
+
+    public @Nonnull Date getLastSeen() {
+        return latest.getCreated();
+    }
+
+    /**
+     * Only log the 1st, 2nd, 4th, 8th... error in a row, so a failing source does not flood the log.
+     */
+    /*package*/ boolean isLogged() {
+        return (count & (count - 1)) == 0;
+    }
+}
@@ -0,0 +1,306 @@
+/*
+ * Copyright (c) Red Hat, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.jenkins.plugins.gating;
+
+import hudson.Extension;
+import hudson.ExtensionList;
+import hudson.XmlFile;
+import hudson.model.Item;
+import hudson.model.ItemGroup;
+import hudson.model.Items;
+import hudson.model.Job;
+import hudson.model.Saveable;
+import hudson.model.listeners.ItemListener;
+import hudson.model.listeners.SaveableListener;
+import hudson.security.ACL;
+import jenkins.model.Jenkins;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.GuardedBy;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Jobs declaring {@link ResourceRequirementProperty}, by required resource.
+ *
+ * Built on first use by visiting all jobs, then kept current as jobs are saved, renamed and deleted. Requirements of
+ * {@code requireResources} steps are not known before the step runs, those are only counted while waiting.
+ */
+@Extension
+@Restricted(NoExternalUse.class)
+public final class GatedJobIndex {
+
+    /**
+     * Full names of jobs by the required resource, or subtree of resources. Null until built.
+     */
+    @GuardedBy("this")
+    private @CheckForNull Map<String, Set<String>> jobsByResource;
+
+    @GuardedBy("this")
+    private final @Nonnull Map<String, List<String>> resourcesByJob = new HashMap<>();
+
+    public static @Nonnull GatedJobIndex get() {
+        return ExtensionList.lookupSingleton(GatedJobIndex.class);
+    }
+
+    /**
+     * Full names of jobs requiring the resource, directly or by a subtree.
+     */
+    public synchronized @Nonnull Set<String> getJobs(@Nonnull String resource) {
+        Map<String, Set<String>> index = getIndex();
+
+        Set<String> jobs = new TreeSet<>();
+        for (String requirement : requirementsCovering(resource)) {
+            Set<String> requiring = index.get(requirement);
+            if (requiring != null) {
+                jobs.addAll(requiring);
+            }
+        }
+        return jobs;
+    }
+
+    /**
+     * Full names of all jobs declaring requirements.
+     */
+    public synchronized @Nonnull Set<String> getGatedJobs() {
+        getIndex();
+        return new TreeSet<>(resourcesByJob.keySet());
+    }
+
+    /**
+     * Jobs requiring the resource and waiters blocked on it.
+     */
+    public @Nonnull Impact getImpact(@Nonnull String resource) {
+        return new Impact(
+                getJobs(resource),
+                countWaiters(resource, ExtensionList.lookupSingleton(GatingDispatcher.class).getBlockedRequirements()),
+                countWaiters(resource, GatingStep.getBlockedRequirements())
+        );
+    }
+
+    /**
+     * Number of waiters requiring the resource, directly or by a subtree.
+     *
+     * @param requirements Required resources of every waiter.
+     */
+    /*package*/ static int countWaiters(@Nonnull String resource, @Nonnull Collection<List<String>> requirements) {
+        List<String> covering = requirementsCovering(resource);
+        int count = 0;
+        for (List<String> required : requirements) {
+            for (String requirement : required) {
+                if (containsIgnoreCase(covering, requirement)) {
+                    count++;
+                    break;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Requirements satisfied only with the resource: its name and the subtrees it belongs to.
+     */
+    /*package*/ static @Nonnull List<String> requirementsCovering(@Nonnull String resource) {
+        List<String> requirements = new ArrayList<>();
+        requirements.add(resource);
+        for (int delim = resource.indexOf(GatingMetrics.DELIM); delim > 0; delim = resource.indexOf(GatingMetrics.DELIM, delim + 1)) {
+            requirements.add(resource.substring(0, delim) + ResourceRequirementProperty.SUBTREE);
+        }
+        return requirements;
+    }
+
+    private static boolean containsIgnoreCase(@Nonnull List<String> names, @Nonnull String name) {
+        for (String candidate : names) {
+            if (GatingMetrics.RESOURCE_ID_COMPARATOR.compare(candidate, name) == 0) return true;
+        }
+        return false;
+    }
+
+    @GuardedBy("this")
+    private @Nonnull Map<String, Set<String>> getIndex() {
+        Map<String, Set<String>> index = jobsByResource;
+        if (index == null) {
+            index = jobsByResource = new TreeMap<>(GatingMetrics.RESOURCE_ID_COMPARATOR);
+            // Shared by all users, built by whoever uses it first
+            for (Job<?, ?> job : Items.allItems2(ACL.SYSTEM2, Jenkins.get(), Job.class)) {
+                add(job);
+            }
+        }
+        return index;
+    }
+
+    private synchronized void update(@Nonnull Job<?, ?> job) {
+        if (jobsByResource == null) return; // Indexed when first used
+
+        remove(job.getFullName());
+        add(job);
+    }
+
+    /**
+     * Update the job, or all jobs of the folder.
+     */
+    private synchronized void updateAll(@Nonnull Item item) {
+        if (jobsByResource == null) return;
+
+        if (item instanceof Job<?, ?> job) {
+            update(job);
+        } else if (item instanceof ItemGroup<?> group) {
+            for (Job<?, ?> job : Items.allItems2(ACL.SYSTEM2, group, Job.class)) {
+                update(job);
+            }
+        }
+    }
+
+    private synchronized void invalidate() {
+        jobsByResource = null;
+        resourcesByJob.clear();
+    }
+
+    private synchronized void delete(@Nonnull String fullName) {
+        if (jobsByResource == null) return;
+
+        remove(fullName);
+    }
+
+    @GuardedBy("this")
+    private void add(@Nonnull Job<?, ?> job) {
+        ResourceRequirementProperty property = job.getProperty(ResourceRequirementProperty.class);
+        if (property == null || property.getResources().isEmpty()) return;
+
+        String fullName = job.getFullName();
+        List<String> resources = property.getResources();
+        resourcesByJob.put(fullName, resources);
+        for (String resource : resources) {
+            jobsByResource.computeIfAbsent(resource, r -> new TreeSet<>()).add(fullName);
+        }
+    }
+
+    @GuardedBy("this")
+    private void remove(@Nonnull String fullName) {
+        List<String> resources = resourcesByJob.remove(fullName);
+        if (resources == null) return;
+
+        for (String resource : resources) {
+            Set<String> jobs = jobsByResource.get(resource);
+            if (jobs == null) continue;
+
+            jobs.remove(fullName);
+            if (jobs.isEmpty()) {
+                jobsByResource.remove(resource);
+            }
+        }
+    }
+
+    public static final class Impact {
+        private final @Nonnull Set<String> jobs;
+        private final int queued;
+        private final int paused;
+
+        private Impact(@Nonnull Set<String> jobs, int queued, int paused) {
+            this.jobs = Collections.unmodifiableSet(jobs);
+            this.queued = queued;
+            this.paused = paused;
+        }
+
+        /**
+         * Full names of the jobs declaring the requirement.
+         */
+        public @Nonnull Set<String> getJobs() {
+            return jobs;
+        }
+
+        /**
+         * Number of queue items blocked waiting.
+         */
+        public int getQueued() {
+            return queued;
+        }
+
+        /**
+         * Number of {@code requireResources} steps blocked waiting.
+         */
+        public int getPaused() {
+            return paused;
+        }
+    }
+
+    @Extension
+    public static final class ItemListenerImpl extends ItemListener {
+        @Override
+        public void onCreated(Item item) {
+            get().updateAll(item);
+        }
+
+        @Override
+        public void onCopied(Item src, Item item) {
+            get().updateAll(item);
+        }
+
+        @Override
+        public void onLoaded() {
+            // Jobs loaded again from disk, rebuilt when used next
+            get().invalidate();
+        }
+
+        @Override
+        public void onUpdated(Item item) {
+            if (item instanceof Job<?, ?> job) {
+                get().update(job);
+            }
+        }
+
+        @Override
+        public void onDeleted(Item item) {
+            get().delete(item.getFullName());
+        }
+
+        @Override
+        public void onLocationChanged(Item item, String oldFullName, String newFullName) {
+            // Fired for every job in renamed or moved folder
+            get().delete(oldFullName);
+            if (item instanceof Job<?, ?> job) {
+                get().update(job);
+            }
+        }
+    }
+
+    @Extension
+    public static final class SaveableListenerImpl extends SaveableListener {
+        @Override
+        public void onChange(Saveable o, XmlFile file) {
+            // Properties added or removed through API, not only through the configuration page
+            if (o instanceof Job<?, ?> job) {
+                get().update(job);
+            }
+        }
+    }
+}
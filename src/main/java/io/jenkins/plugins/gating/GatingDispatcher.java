@@ -22,21 +22,36 @@
 package io.jenkins.plugins.gating;
 
 import hudson.Extension;
+import hudson.ExtensionList;
 import hudson.model.Job;
 import hudson.model.Queue;
 import hudson.model.queue.CauseOfBlockage;
+import hudson.model.queue.QueueListener;
 import hudson.model.queue.QueueTaskDispatcher;
 import org.kohsuke.accmod.Restricted;
 import org.kohsuke.accmod.restrictions.NoExternalUse;
 
 import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
 import javax.inject.Inject;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 @Extension
 @Restricted(NoExternalUse.class)
 public final class GatingDispatcher extends QueueTaskDispatcher {
 
     @Inject private GatingMetrics metrics;
+    @Inject private MetricsPoller poller;
+
+    /**
+     * Required resources of queue items blocked on them, by item id. Permits to notify {@link GatingListener}s of
+     * changes only.
+     */
+    private final Map<Long, List<String>> blocked = new ConcurrentHashMap<>();
 
     @Override
     public @CheckForNull CauseOfBlockage canRun(Queue.Item item) {
@@ -45,8 +60,52 @@ public final class GatingDispatcher extends QueueTaskDispatcher {
 
             if (property == null) return null; // No Requirements, free to run
 
-            return property.evaluate(metrics);
+            GatingEvents.Dispatch event = new GatingEvents.Dispatch();
+            event.begin();
+
+            // Do not start builds that would still run when the maintenance of their resources starts. Capacity is
+            // acquired once the item leaves the buildable state, see ResourceAdmission.
+            ResourceBlockage blockage = property.evaluate(
+                    metrics, metrics.getAllResources(), job.getEstimatedDuration(), ResourceAdmission.holderOf(item)
+            );
+
+            if (blockage != null) {
+                poller.demand(blockage.getResources());
+                if (blocked.put(item.getId(), property.getResources()) == null) {
+                    GatingListener.fireBlocked(new GatingListener.Waiter(item), blockage);
+                }
+            } else if (blocked.remove(item.getId()) != null) {
+                GatingListener.fireUnblocked(new GatingListener.Waiter(item));
+            }
+
+            event.end();
+            if (event.shouldCommit()) {
+                event.job = job.getFullName();
+                event.blocked = blockage != null;
+                event.outcome = blockage == null ? "run" : blockage.getShortDescription();
+                event.commit();
+            }
+            return blockage;
         }
         return null;
     }
+
+    /**
+     * Required resources of every blocked queue item.
+     */
+    /*package*/ @Nonnull Collection<List<String>> getBlockedRequirements() {
+        return Collections.unmodifiableCollection(blocked.values());
+    }
+
+    @Extension
+    public static final class QueueListenerImpl extends QueueListener {
+        @Override
+        public void onLeft(Queue.LeftItem li) {
+            // Cancelled while blocked
+            List<String> requirements = ExtensionList.lookupSingleton(GatingDispatcher.class).blocked.remove(li.getId());
+            if (requirements != null && li.isCancelled()) {
+                GatingListener.fireCancelled(new GatingListener.Waiter(li));
+            }
+        }
+    }
 }
@@ -0,0 +1,359 @@
+/*
+ * Copyright (c) Red Hat, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.jenkins.plugins.gating;
+
+import hudson.Extension;
+import hudson.ExtensionList;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import jakarta.servlet.AsyncContext;
+import jakarta.servlet.ServletOutputStream;
+import jenkins.util.SystemProperties;
+import jenkins.util.Timer;
+import net.sf.json.JSONObject;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+import org.kohsuke.stapler.StaplerRequest2;
+import org.kohsuke.stapler.StaplerResponse2;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.GuardedBy;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Stream of resource changes for the Gating Metrics page, delivered as server-sent events.
+ *
+ * The page is rendered once and the changes are applied to it as they come. Every change has a sequence number, so
+ * clients reconnecting, or connecting right after the page was rendered, catch up from the recent history.
+ *
+ * Writes to the clients never block the dispatcher: every client has a bounded outbox written by its own task, and
+ * clients too slow to keep up are disconnected. They reconnect and catch up, or reload the page.
+ */
+@Extension
+@Restricted(NoExternalUse.class)
+public final class GatingEventStream extends GatingListener {
+    private static final Logger LOGGER = Logger.getLogger(GatingEventStream.class.getName());
+
+    /**
+     * Number of recent events kept to catch up reconnecting clients.
+     */
+    private static final int HISTORY = SystemProperties.getInteger(GatingEventStream.class.getName() + ".history", 1024);
+
+    /**
+     * Keep idle connections open through proxies, and find disconnected clients.
+     */
+    private static final long HEARTBEAT = TimeUnit.SECONDS.toMillis(30);
+
+    /**
+     * Number of writes waiting for a client before it is disconnected.
+     */
+    private static final int OUTBOX = SystemProperties.getInteger(GatingEventStream.class.getName() + ".outbox", 64);
+
+    private static final ExecutorService WRITERS = Executors.newCachedThreadPool(
+            new NamingThreadFactory(new DaemonThreadFactory(), "GatingEventStream writer")
+    );
+
+    private final @Nonnull List<Client> clients = new CopyOnWriteArrayList<>();
+
+    @GuardedBy("history")
+    private final @Nonnull ArrayDeque<Event> history = new ArrayDeque<>();
+    /**
+     * Starts at the boot time, so the ids of the previous boots are older than any recorded since and the clients
+     * connected before a restart reload the page instead of skipping the new events.
+     */
+    @GuardedBy("history")
+    private long sequence = TimeUnit.MILLISECONDS.toMicros(System.currentTimeMillis());
+    @GuardedBy("history")
+    private boolean heartbeatScheduled = false;
+
+    public static @Nonnull GatingEventStream get() {
+        return ExtensionList.lookupSingleton(GatingEventStream.class);
+    }
+
+    /**
+     * Sequence number of the latest event. Read before rendering the state the client starts from.
+     */
+    public long getSequence() {
+        synchronized (history) {
+            return sequence;
+        }
+    }
+
+    @Override
+    public void onResourcesChanged(@Nonnull String sourceLabel, @Nonnull List<Transition> transitions) {
+        List<Event> events = new ArrayList<>(transitions.size() + 1);
+        synchronized (history) {
+            for (Transition transition : transitions) {
+                events.add(record("resource", toJson(transition)));
+            }
+
+            ResourceRollup rollup = GatingMetrics.get().getRollup(sourceLabel);
+            JSONObject json = new JSONObject()
+                    .element("source", sourceLabel)
+                    .element("category", rollup == null ? ResourceStatus.Category.UNKNOWN.name() : rollup.getCategory().name())
+                    .element("summary", rollup == null ? "" : rollup.getTotal() + " resources: " + rollup)
+            ;
+            events.add(record("rollup", json));
+        }
+
+        // Clients skip the events they have already seen, so it is safe to enqueue outside the lock
+        for (Client client : clients) {
+            client.send(events);
+        }
+    }
+
+    @GuardedBy("history")
+    private @Nonnull Event record(@Nonnull String type, @Nonnull JSONObject data) {
+        Event event = new Event(++sequence, type, data.toString());
+        history.addLast(event);
+        if (history.size() > HISTORY) {
+            history.removeFirst();
+        }
+        return event;
+    }
+
+    private static @Nonnull JSONObject toJson(@Nonnull Transition transition) {
+        ResourceStatus to = transition.getTo();
+        return new JSONObject()
+                .element("resource", transition.getResource())
+                .element("status", to == null ? null : to.toString())
+                .element("category", to == null ? null : to.getCategory().name())
+        ;
+    }
+
+    /**
+     * Events after given sequence number, null if some of them are no longer retained.
+     */
+    /*package*/ @CheckForNull List<Event> eventsSince(long since) {
+        synchronized (history) {
+            // Ahead of this boot
+            if (since > sequence) return null;
+
+            Event oldest = history.peekFirst();
+            if (since < sequence && (oldest == null || oldest.id > since + 1)) return null;
+
+            List<Event> events = new ArrayList<>();
+            for (Event event : history) {
+                if (event.id > since) {
+                    events.add(event);
+                }
+            }
+            return events;
+        }
+    }
+
+    /*package*/ void connect(@Nonnull StaplerRequest2 req, @Nonnull StaplerResponse2 rsp) throws IOException {
+        rsp.setContentType("text/event-stream");
+        rsp.setCharacterEncoding("UTF-8");
+        rsp.setHeader("Cache-Control", "no-cache");
+        rsp.setHeader("X-Accel-Buffering", "no"); // Do not buffer in nginx
+
+        AsyncContext async = req.startAsync();
+        async.setTimeout(0);
+        Client client = new Client(async, rsp.getOutputStream());
+
+        Long since = getLastEventId(req);
+        synchronized (history) {
+            List<Event> missed = eventsSince(since == null ? sequence : since);
+            if (missed == null) {
+                client.close(new Event(sequence, "reload", "{}"));
+                return;
+            }
+
+            // Register while holding the lock, so no event is recorded after the catch-up and before registration.
+            // Only enqueued here, the writes happen outside
+            clients.add(client);
+            client.send(missed);
+        }
+        scheduleHeartbeat();
+    }
+
+    private static @CheckForNull Long getLastEventId(@Nonnull StaplerRequest2 req) {
+        // Sent by the browser when reconnecting, the page passes the sequence it was rendered with on first connect
+        String id = req.getHeader("Last-Event-ID");
+        if (id == null) {
+            id = req.getParameter("since");
+        }
+        try {
+            return id == null ? null : Long.parseLong(id);
+        } catch (NumberFormatException ex) {
+            return -1L;
+        }
+    }
+
+    private void scheduleHeartbeat() {
+        synchronized (history) {
+            if (heartbeatScheduled) return;
+
+            heartbeatScheduled = true;
+        }
+        Timer.get().scheduleWithFixedDelay(() -> {
+            for (Client client : clients) {
+                client.heartbeat();
+            }
+        }, HEARTBEAT, HEARTBEAT, TimeUnit.MILLISECONDS);
+    }
+
+    /*package*/ static final class Event {
+        private final long id;
+        private final @Nonnull String type;
+        private final @Nonnull String data;
+
+        private Event(long id, @Nonnull String type, @Nonnull String data) {
+            this.id = id;
+            this.type = type;
+            this.data = data;
+        }
+
+        /*package*/ @Nonnull String getType() {
+            return type;
+        }
+
+        /*package*/ @Nonnull String getData() {
+            return data;
+        }
+
+        private @Nonnull String format() {
+            return "id: " + id + "\nevent: " + type + "\ndata: " + data + "\n\n";
+        }
+    }
+
+    private final class Client implements Runnable {
+        private final @Nonnull AsyncContext async;
+        private final @Nonnull ServletOutputStream out;
+
+        @GuardedBy("this")
+        private final @Nonnull ArrayDeque<String> outbox = new ArrayDeque<>();
+        @GuardedBy("this")
+        private boolean writing = false;
+        /**
+         * Complete the response once the outbox is written, nothing more is accepted.
+         */
+        @GuardedBy("this")
+        private boolean closing = false;
+
+        private Client(@Nonnull AsyncContext async, @Nonnull ServletOutputStream out) {
+            this.async = async;
+            this.out = out;
+        }
+
+        private void send(@Nonnull List<Event> events) {
+            if (events.isEmpty()) return;
+
+            StringBuilder sb = new StringBuilder();
+            for (Event event : events) {
+                sb.append(event.format());
+            }
+            offer(sb.toString(), false);
+        }
+
+        private void close(@Nonnull Event event) {
+            offer(event.format(), true);
+        }
+
+        private void heartbeat() {
+            synchronized (this) {
+                // Data are on their way
+                if (writing) return;
+            }
+            offer(":\n\n", false);
+        }
+
+        private void offer(@Nonnull String text, boolean last) {
+            boolean overflow;
+            synchronized (this) {
+                if (closing) return;
+
+                overflow = outbox.size() >= OUTBOX;
+                if (!overflow) {
+                    outbox.addLast(text);
+                    closing = last;
+                    if (writing) return;
+
+                    writing = true;
+                }
+            }
+
+            if (overflow) {
+                LOGGER.fine("Gating event stream client not keeping up, disconnecting");
+                disconnect();
+                return;
+            }
+            WRITERS.execute(this);
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                String text;
+                synchronized (this) {
+                    text = outbox.pollFirst();
+                    if (text == null) {
+                        writing = false;
+                        if (closing) {
+                            complete();
+                        }
+                        return;
+                    }
+                }
+
+                try {
+                    out.write(text.getBytes(StandardCharsets.UTF_8));
+                    out.flush();
+                } catch (IOException | IllegalStateException ex) {
+                    LOGGER.log(Level.FINE, "Gating event stream client disconnected", ex);
+                    disconnect();
+                    return;
+                }
+            }
+        }
+
+        private void disconnect() {
+            clients.remove(this);
+            synchronized (this) {
+                closing = true;
+                outbox.clear();
+                writing = false;
+            }
+            complete();
+        }
+
+        private void complete() {
+            try {
+                async.complete();
+            } catch (IllegalStateException alreadyCompleted) {
+                // Nothing to complete
+            }
+        }
+    }
+}
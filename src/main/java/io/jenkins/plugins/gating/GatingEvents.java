@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) Red Hat, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.jenkins.plugins.gating;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Java Flight Recorder events of gating.
+ *
+ * Events are only populated and committed when enabled in a recording, so they cost next to nothing otherwise.
+ */
+/*package*/ final class GatingEvents {
+    private static final String CATEGORY = "Gating";
+
+    private GatingEvents() {}
+
+    @Name("io.jenkins.plugins.gating.Dispatch")
+    @Label("Gating Dispatch Decision")
+    @Description("Evaluation of resource requirements of a queue item")
+    @Category({"Jenkins", CATEGORY})
+    @StackTrace(false)
+    /*package*/ static final class Dispatch extends Event {
+        @Label("Job")
+        /*package*/ String job;
+
+        @Label("Blocked")
+        /*package*/ boolean blocked;
+
+        @Label("Outcome")
+        /*package*/ String outcome;
+    }
+
+    @Name("io.jenkins.plugins.gating.Update")
+    @Label("Gating Metrics Update")
+    @Description("Metrics snapshot of a source applied")
+    @Category({"Jenkins", CATEGORY})
+    @StackTrace(false)
+    /*package*/ static final class Update extends Event {
+        @Label("Source Label")
+        /*package*/ String source;
+
+        @Label("Resources")
+        /*package*/ int resources;
+
+        @Label("Changed")
+        @Description("Resources added, removed, or with changed category")
+        /*package*/ int changed;
+
+        @Label("Lock Wait")
+        @Timespan(Timespan.NANOSECONDS)
+        /*package*/ long lockWait;
+
+        @Label("Lock Held")
+        @Timespan(Timespan.NANOSECONDS)
+        /*package*/ long lockHeld;
+    }
+
+    @Name("io.jenkins.plugins.gating.ResourceMapRebuild")
+    @Label("Gating Resource Map Rebuild")
+    @Description("View of all resources created, or merged for iteration")
+    @Category({"Jenkins", CATEGORY})
+    /*package*/ static final class ResourceMapRebuild extends Event {
+        @Label("Sources")
+        /*package*/ int sources;
+
+        @Label("Resources")
+        /*package*/ int resources;
+
+        @Label("Merged")
+        @Description("All resources merged into a single map")
+        /*package*/ boolean merged;
+    }
+
+    @Name("io.jenkins.plugins.gating.Recheck")
+    @Label("Gating Recheck Pass")
+    @Description("Requirements of blocked requireResources steps reevaluated")
+    @Category({"Jenkins", CATEGORY})
+    @StackTrace(false)
+    /*package*/ static final class Recheck extends Event {
+        @Label("Executions")
+        /*package*/ int executions;
+    }
+}
@@ -0,0 +1,473 @@
+/*
+ * Copyright (c) Red Hat, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.jenkins.plugins.gating;
+
+import hudson.Extension;
+import hudson.ExtensionList;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.init.Terminator;
+import hudson.model.Job;
+import hudson.model.Queue;
+import hudson.model.Run;
+import jenkins.model.Jenkins;
+import jenkins.util.SystemProperties;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.GuardedBy;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * Append-only journal of builds and steps blocking on resources and unblocking, kept in {@code JENKINS_HOME/gating-journal}.
+ *
+ * Records are appended to memory-mapped segments of fixed size, the oldest segments deleted as new ones are created.
+ * The journal is fed by {@link GatingListener} notifications, so it adds nothing to the dispatcher itself. Waits open
+ * when Jenkins stopped are closed on startup, those still blocked are journaled again once reevaluated.
+ *
+ * The totals reported are read from the segments once and kept up to date as records are appended, the segments are
+ * only read again under the lock they are written with.
+ */
+@Extension
+@Restricted(NoExternalUse.class)
+public final class GatingJournal extends GatingListener {
+    private static final Logger LOGGER = Logger.getLogger(GatingJournal.class.getName());
+
+    private static final int SEGMENT_SIZE = SystemProperties.getInteger(GatingJournal.class.getName() + ".segmentSize", 4 << 20);
+    private static final int SEGMENTS = SystemProperties.getInteger(GatingJournal.class.getName() + ".segments", 16);
+    private static final String SUFFIX = ".journal";
+
+    private static final byte BLOCKED = 1;
+    private static final byte UNBLOCKED = 2;
+    private static final byte CANCELLED = 3;
+    private static final byte INTERRUPTED = 4; // By restart
+
+    @GuardedBy("this")
+    private @CheckForNull Segment current;
+
+    /**
+     * Accounting of the retained segments, loaded on first use.
+     */
+    @GuardedBy("this")
+    private @CheckForNull Totals totals;
+
+    public static @Nonnull GatingJournal get() {
+        return ExtensionList.lookupSingleton(GatingJournal.class);
+    }
+
+    @Override
+    public void onBlocked(@Nonnull Waiter waiter, @Nonnull ResourceBlockage blockage) {
+        append(new Entry(waiter.getTimestamp(), BLOCKED, waiter.getId(), jobOf(waiter), blockage.getResources()));
+    }
+
+    @Override
+    public void onUnblocked(@Nonnull Waiter waiter) {
+        append(new Entry(waiter.getTimestamp(), UNBLOCKED, waiter.getId(), jobOf(waiter), Collections.emptyList()));
+    }
+
+    @Override
+    public void onCancelled(@Nonnull Waiter waiter) {
+        append(new Entry(waiter.getTimestamp(), CANCELLED, waiter.getId(), jobOf(waiter), Collections.emptyList()));
+    }
+
+    private static @Nonnull String jobOf(@Nonnull Waiter waiter) {
+        Queue.Item item = waiter.getItem();
+        if (item != null && item.task instanceof Job<?, ?> job) return job.getFullName();
+
+        Run<?, ?> run = waiter.getRun();
+        if (run != null) return run.getParent().getFullName();
+
+        return waiter.getDisplayName();
+    }
+
+    /*package*/ static @Nonnull Path getDirectory() {
+        return Jenkins.get().getRootDir().toPath().resolve("gating-journal");
+    }
+
+    private synchronized void append(@Nonnull Entry entry) {
+        byte[] record = entry.encode();
+        try {
+            if (record.length + Integer.BYTES * 2 > SEGMENT_SIZE) {
+                LOGGER.warning("Gating journal entry too big to record: " + record.length + " bytes");
+                return;
+            }
+
+            // Loaded before appending, not to account the record twice
+            Totals totals = totals();
+            Segment segment = current;
+            if (segment == null) {
+                segment = current = Segment.openLatest(getDirectory());
+            }
+            if (!segment.append(record)) {
+                segment.close();
+                segment = current = Segment.create(getDirectory(), segment.number + 1);
+                totals.dropBefore(deleteOldSegments(getDirectory()));
+                segment.append(record);
+            }
+            totals.account(segment.number, entry);
+        } catch (IOException ex) {
+            LOGGER.log(Level.WARNING, "Failed writing gating journal", ex);
+        }
+    }
+
+    @GuardedBy("this")
+    private @Nonnull Totals totals() throws IOException {
+        if (totals == null) {
+            Totals loaded = new Totals();
+            for (Path segment : listSegments(getDirectory())) {
+                int number = numberOf(segment);
+                readSegment(segment, entry -> loaded.account(number, entry));
+            }
+            totals = loaded;
+        }
+        return totals;
+    }
+
+    /**
+     * @return Number of the oldest segment retained.
+     */
+    private static int deleteOldSegments(@Nonnull Path directory) throws IOException {
+        List<Path> segments = listSegments(directory);
+        int deleted = Math.max(segments.size() - SEGMENTS, 0);
+        for (int i = 0; i < deleted; i++) {
+            Files.deleteIfExists(segments.get(i));
+        }
+        return segments.isEmpty() ? 0 : numberOf(segments.get(deleted));
+    }
+
+    private static int numberOf(@Nonnull Path segment) {
+        String name = segment.getFileName().toString();
+        return Integer.parseInt(name.substring(0, name.length() - SUFFIX.length()));
+    }
+
+    /**
+     * Segment files ordered from the oldest.
+     */
+    private static @Nonnull List<Path> listSegments(@Nonnull Path directory) throws IOException {
+        if (!Files.isDirectory(directory)) return Collections.emptyList();
+
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(f -> f.getFileName().toString().endsWith(SUFFIX))
+                    .sorted() // Numbers are zero-padded
+                    .toList()
+            ;
+        }
+    }
+
+    /**
+     * Read all entries retained, from the oldest.
+     */
+    /*package*/ synchronized @Nonnull List<Entry> read() throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        for (Path segment : listSegments(getDirectory())) {
+            readSegment(segment, entries::add);
+        }
+        return entries;
+    }
+
+    /**
+     * Called under the lock of the journal, as the memory model orders nothing between the stores to the mapping
+     * written to and the loads from another one.
+     */
+    private static void readSegment(@Nonnull Path segment, @Nonnull Consumer<Entry> entries) throws IOException {
+        // Shares the pages with the mapping written to, so even the latest records are visible
+        ByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } catch (NoSuchFileException ex) {
+            return; // Deleted in the meantime
+        }
+        while (buffer.remaining() >= Integer.BYTES) {
+            int length = buffer.getInt();
+            if (length <= 0 || length > buffer.remaining()) break; // End of written data
+
+            byte[] record = new byte[length];
+            buffer.get(record);
+            try {
+                entries.accept(Entry.decode(record));
+            } catch (IOException | BufferUnderflowException ex) {
+                LOGGER.log(Level.WARNING, "Skipping the rest of corrupted gating journal segment " + segment, ex);
+                return;
+            }
+        }
+    }
+
+    /**
+     * End the waits not ended before Jenkins stopped, at the time it starts again.
+     */
+    /*package*/ synchronized void closeOpenWaits() throws IOException {
+        long now = System.currentTimeMillis();
+        for (Entry open : new ArrayList<>(totals().open.values())) {
+            append(new Entry(now, INTERRUPTED, open.waiter, open.job, Collections.emptyList()));
+        }
+    }
+
+    @Initializer(after = InitMilestone.EXTENSIONS_AUGMENTED, before = InitMilestone.JOB_LOADED)
+    public static void startup() {
+        try {
+            // Before the queue and pipelines journal new waits
+            get().closeOpenWaits();
+        } catch (IOException ex) {
+            LOGGER.log(Level.WARNING, "Failed closing waits in gating journal", ex);
+        }
+    }
+
+    /**
+     * Total time waited per job and per resource, over the retained journal.
+     */
+    public synchronized @Nonnull Report getReport() throws IOException {
+        Totals totals = totals();
+        return new Report(totals.bySegment.values(), totals.open.values(), System.currentTimeMillis());
+    }
+
+    @Terminator
+    public static void shutdown() {
+        for (GatingJournal journal : ExtensionList.lookup(GatingJournal.class)) {
+            synchronized (journal) {
+                if (journal.current != null) {
+                    journal.current.close();
+                    journal.current = null;
+                }
+            }
+        }
+    }
+
+    /*package*/ static final class Entry {
+        private final long timestamp;
+        private final byte type;
+        private final @Nonnull String waiter;
+        private final @Nonnull String job;
+        private final @Nonnull List<String> resources;
+
+        private Entry(long timestamp, byte type, @Nonnull String waiter, @Nonnull String job, @Nonnull List<String> resources) {
+            this.timestamp = timestamp;
+            this.type = type;
+            this.waiter = waiter;
+            this.job = job;
+            this.resources = resources;
+        }
+
+        /**
+         * Timestamp, type, then the length-prefixed waiter, job, and resources preceded by their count.
+         */
+        private byte[] encode() {
+            byte[] waiter = this.waiter.getBytes(StandardCharsets.UTF_8);
+            byte[] job = this.job.getBytes(StandardCharsets.UTF_8);
+            List<byte[]> resources = new ArrayList<>(this.resources.size());
+            int size = Long.BYTES + 1 + Integer.BYTES + waiter.length + Integer.BYTES + job.length + Integer.BYTES;
+            for (String resource : this.resources) {
+                byte[] bytes = resource.getBytes(StandardCharsets.UTF_8);
+                resources.add(bytes);
+                size += Integer.BYTES + bytes.length;
+            }
+
+            ByteBuffer buffer = ByteBuffer.allocate(size).putLong(timestamp).put(type);
+            buffer.putInt(waiter.length).put(waiter);
+            buffer.putInt(job.length).put(job);
+            buffer.putInt(resources.size());
+            for (byte[] resource : resources) {
+                buffer.putInt(resource.length).put(resource);
+            }
+            return buffer.array();
+        }
+
+        private static @Nonnull Entry decode(@Nonnull byte[] record) throws IOException {
+            ByteBuffer buffer = ByteBuffer.wrap(record);
+            long timestamp = buffer.getLong();
+            byte type = buffer.get();
+            String waiter = decodeString(buffer);
+            String job = decodeString(buffer);
+            int count = buffer.getInt();
+            if (count < 0 || count > buffer.remaining() / Integer.BYTES) throw new IOException("Invalid number of resources " + count);
+
+            List<String> resources = count == 0 ? Collections.emptyList() : new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                resources.add(decodeString(buffer));
+            }
+            return new Entry(timestamp, type, waiter, job, resources);
+        }
+
+        private static @Nonnull String decodeString(@Nonnull ByteBuffer buffer) throws IOException {
+            int length = buffer.getInt();
+            if (length < 0 || length > buffer.remaining()) throw new IOException("Invalid field length " + length);
+
+            String value = new String(buffer.array(), buffer.position(), length, StandardCharsets.UTF_8);
+            buffer.position(buffer.position() + length);
+            return value;
+        }
+    }
+
+    /**
+     * Journal segment mapped to memory.
+     */
+    private static final class Segment {
+        private final int number;
+        private final @Nonnull FileChannel channel;
+        private final @Nonnull MappedByteBuffer buffer;
+
+        private Segment(int number, @Nonnull FileChannel channel) throws IOException {
+            this.number = number;
+            this.channel = channel;
+            this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_SIZE);
+        }
+
+        private static @Nonnull Segment create(@Nonnull Path directory, int number) throws IOException {
+            Files.createDirectories(directory);
+            Path file = directory.resolve(String.format("%010d%s", number, SUFFIX));
+            return new Segment(number, FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE));
+        }
+
+        /**
+         * Continue appending to the latest segment.
+         */
+        private static @Nonnull Segment openLatest(@Nonnull Path directory) throws IOException {
+            List<Path> segments = listSegments(directory);
+            if (segments.isEmpty()) return create(directory, 0);
+
+            Segment segment = create(directory, numberOf(segments.get(segments.size() - 1)));
+
+            // Skip the records written before
+            MappedByteBuffer buffer = segment.buffer;
+            while (buffer.remaining() >= Integer.BYTES) {
+                int length = buffer.getInt(buffer.position());
+                if (length <= 0 || length > buffer.remaining() - Integer.BYTES) break;
+
+                buffer.position(buffer.position() + Integer.BYTES + length);
+            }
+            return segment;
+        }
+
+        /**
+         * @return false when the segment is full.
+         */
+        private boolean append(@Nonnull byte[] record) {
+            // Terminated by zero length of the next record, the file is zero-filled
+            if (buffer.remaining() < Integer.BYTES + record.length) return false;
+
+            buffer.putInt(record.length).put(record);
+            return true;
+        }
+
+        private void close() {
+            buffer.force();
+            try {
+                channel.close();
+            } catch (IOException ex) {
+                LOGGER.log(Level.WARNING, "Failed closing gating journal segment", ex);
+            }
+        }
+    }
+
+    /**
+     * Waits of the retained segments, closed waits accounted to the segment the end of the wait is recorded in.
+     */
+    private static final class Totals {
+        private final @Nonnull Map<String, Entry> open = new HashMap<>();
+        private final @Nonnull TreeMap<Integer, Report> bySegment = new TreeMap<>();
+
+        private void account(int segment, @Nonnull Entry entry) {
+            if (entry.type == BLOCKED) {
+                open.putIfAbsent(entry.waiter, entry);
+            } else { // Unblocked, cancelled or interrupted
+                Entry since = open.remove(entry.waiter);
+                if (since != null) {
+                    bySegment.computeIfAbsent(segment, n -> new Report()).account(since, entry.timestamp - since.timestamp);
+                }
+            }
+        }
+
+        private void dropBefore(int segment) {
+            bySegment.headMap(segment).clear();
+        }
+    }
+
+    public static final class Report {
+        private final @Nonnull Map<String, Long> waitedByJob = new TreeMap<>();
+        private final @Nonnull Map<String, Long> waitedByResource = new TreeMap<>(GatingMetrics.RESOURCE_ID_COMPARATOR);
+        private int waiting = 0;
+
+        private Report() {}
+
+        private Report(@Nonnull Collection<Report> closed, @Nonnull Collection<Entry> open, long now) {
+            for (Report segment : closed) {
+                segment.waitedByJob.forEach((job, waited) -> waitedByJob.merge(job, waited, Long::sum));
+                segment.waitedByResource.forEach((resource, waited) -> waitedByResource.merge(resource, waited, Long::sum));
+            }
+
+            // Those still waiting
+            for (Entry since : open) {
+                waiting++;
+                account(since, now - since.timestamp);
+            }
+        }
+
+        private void account(@Nonnull Entry blocked, long waited) {
+            waitedByJob.merge(blocked.job, waited, Long::sum);
+            for (String resource : blocked.resources) {
+                waitedByResource.merge(resource, waited, Long::sum);
+            }
+        }
+
+        /**
+         * Milliseconds waited by job full name.
+         */
+        public @Nonnull Map<String, Long> getWaitedByJob() {
+            return Collections.unmodifiableMap(waitedByJob);
+        }
+
+        /**
+         * Milliseconds waited by the resource the waiters were blocked on.
+         */
+        public @Nonnull Map<String, Long> getWaitedByResource() {
+            return Collections.unmodifiableMap(waitedByResource);
+        }
+
+        /**
+         * Number of waits not yet over.
+         */
+        public int getWaiting() {
+            return waiting;
+        }
+    }
+}
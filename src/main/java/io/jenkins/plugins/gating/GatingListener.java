@@ -0,0 +1,297 @@
+/*
+ * Copyright (c) Red Hat, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.jenkins.plugins.gating;
+
+import hudson.ExtensionList;
+import hudson.ExtensionPoint;
+import hudson.model.Queue;
+import hudson.model.Run;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Receive notifications about changes of resources and builds blocked on them.
+ *
+ * Listeners are notified in order on a dedicated thread, so a slow listener delays other notifications but never
+ * the metrics updates nor the queue. Resource changes of a source not dispatched yet are merged, so listeners falling
+ * behind are notified about the net change and no more than two snapshots per source wait for them.
+ */
+public abstract class GatingListener implements ExtensionPoint {
+    private static final Logger LOGGER = Logger.getLogger(GatingListener.class.getName());
+
+    private static final ExecutorService DISPATCHER = Executors.newSingleThreadExecutor(
+            new NamingThreadFactory(new DaemonThreadFactory(), "GatingListener")
+    );
+
+    /**
+     * Resource changes waiting for dispatch, by source label.
+     */
+    private static final ConcurrentHashMap<String, PendingChange> PENDING = new ConcurrentHashMap<>();
+
+    /**
+     * Resources of a source changed their status.
+     *
+     * @param sourceLabel Source label of the changed resources.
+     * @param transitions All transitions of a single update, ordered by resource name.
+     */
+    public void onResourcesChanged(@Nonnull String sourceLabel, @Nonnull List<Transition> transitions) {}
+
+    /**
+     * Build or pipeline step started waiting for resources.
+     */
+    public void onBlocked(@Nonnull Waiter waiter, @Nonnull ResourceBlockage blockage) {}
+
+    /**
+     * Build or pipeline step blocked before can proceed.
+     */
+    public void onUnblocked(@Nonnull Waiter waiter) {}
+
+    /**
+     * Build or pipeline step was cancelled while blocked.
+     */
+    public void onCancelled(@Nonnull Waiter waiter) {}
+
+    public static @Nonnull ExtensionList<GatingListener> all() {
+        return ExtensionList.lookup(GatingListener.class);
+    }
+
+    /*package*/ static void fireResourcesChanged(@CheckForNull MetricsSnapshot replaced, @Nonnull MetricsSnapshot snapshot) {
+        if (all().isEmpty()) return;
+
+        String sourceLabel = snapshot.getSourceLabel();
+        boolean[] coalesced = { false };
+        PENDING.compute(sourceLabel, (label, previous) -> {
+            coalesced[0] = previous != null;
+            // Diff from what the listeners have seen last
+            return new PendingChange(previous == null ? replaced : previous.replaced, snapshot);
+        });
+        if (coalesced[0]) return; // Already scheduled
+
+        DISPATCHER.execute(() -> {
+            PendingChange change = PENDING.remove(sourceLabel);
+
+            // Compared here, so the updating thread does not pay for it
+            List<Transition> transitions = diff(change.replaced, change.snapshot);
+            if (transitions.isEmpty()) return;
+
+            notify(listener -> listener.onResourcesChanged(sourceLabel, transitions));
+        });
+    }
+
+    /*package*/ static void fireBlocked(@Nonnull Waiter waiter, @Nonnull ResourceBlockage blockage) {
+        if (all().isEmpty()) return;
+
+        DISPATCHER.execute(() -> notify(listener -> listener.onBlocked(waiter, blockage)));
+    }
+
+    /*package*/ static void fireUnblocked(@Nonnull Waiter waiter) {
+        if (all().isEmpty()) return;
+
+        DISPATCHER.execute(() -> notify(listener -> listener.onUnblocked(waiter)));
+    }
+
+    /*package*/ static void fireCancelled(@Nonnull Waiter waiter) {
+        if (all().isEmpty()) return;
+
+        DISPATCHER.execute(() -> notify(listener -> listener.onCancelled(waiter)));
+    }
+
+    private static void notify(@Nonnull Consumer<GatingListener> notification) {
+        for (GatingListener listener : all()) {
+            try {
+                notification.accept(listener);
+            } catch (RuntimeException ex) {
+                LOGGER.log(Level.WARNING, "Gating listener " + listener + " failed", ex);
+            }
+        }
+    }
+
+    /*package*/ static @Nonnull List<Transition> diff(@CheckForNull MetricsSnapshot replaced, @Nonnull MetricsSnapshot snapshot) {
+        if (replaced != null && replaced.hasSameResources(snapshot)) return Collections.emptyList();
+
+        // Both snapshots are sorted by name
+        List<Transition> transitions = new ArrayList<>();
+        int r = 0;
+        int s = 0;
+        int replacedSize = replaced == null ? 0 : replaced.size();
+        int size = snapshot.size();
+        while (r < replacedSize || s < size) {
+            int cmp = r == replacedSize ? 1
+                    : s == size ? -1
+                    : GatingMetrics.RESOURCE_ID_COMPARATOR.compare(replaced.nameAt(r), snapshot.nameAt(s))
+            ;
+            if (cmp < 0) {
+                transitions.add(new Transition(replaced.nameAt(r), replaced.statusAt(r), null));
+                r++;
+            } else if (cmp > 0) {
+                transitions.add(new Transition(snapshot.nameAt(s), null, snapshot.statusAt(s)));
+                s++;
+            } else {
+                ResourceStatus from = replaced.statusAt(r);
+                ResourceStatus to = snapshot.statusAt(s);
+                if (!from.equals(to)) {
+                    transitions.add(new Transition(snapshot.nameAt(s), from, to));
+                }
+                r++;
+                s++;
+            }
+        }
+        return transitions;
+    }
+
+    private static final class PendingChange {
+        private final @CheckForNull MetricsSnapshot replaced;
+        private final @Nonnull MetricsSnapshot snapshot;
+
+        private PendingChange(@CheckForNull MetricsSnapshot replaced, @Nonnull MetricsSnapshot snapshot) {
+            this.replaced = replaced;
+            this.snapshot = snapshot;
+        }
+    }
+
+    /**
+     * Change of a resource status.
+     */
+    public static final class Transition {
+        private final @Nonnull String resource;
+        private final @CheckForNull ResourceStatus from;
+        private final @CheckForNull ResourceStatus to;
+
+        /*package*/ Transition(@Nonnull String resource, @CheckForNull ResourceStatus from, @CheckForNull ResourceStatus to) {
+            this.resource = resource;
+            this.from = from;
+            this.to = to;
+        }
+
+        public @Nonnull String getResource() {
+            return resource;
+        }
+
+        /**
+         * Previous status, null if the resource was not reported before.
+         */
+        public @CheckForNull ResourceStatus getFrom() {
+            return from;
+        }
+
+        /**
+         * Current status, null if the resource is no longer reported.
+         */
+        public @CheckForNull ResourceStatus getTo() {
+            return to;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Transition that = (Transition) o;
+            return resource.equals(that.resource) && Objects.equals(from, that.from) && Objects.equals(to, that.to);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(resource, from, to);
+        }
+
+        @Override
+        public String toString() {
+            return resource + ": " + from + " -> " + to;
+        }
+    }
+
+    /**
+     * Queued build or pipeline step waiting for resources.
+     */
+    public static final class Waiter {
+        private final @Nonnull String id;
+        private final @Nonnull String displayName;
+        private final @CheckForNull Queue.Item item;
+        private final @CheckForNull Run<?, ?> run;
+        // Created for every notification, as it happens
+        private final long timestamp = System.currentTimeMillis();
+
+        /*package*/ Waiter(@Nonnull Queue.Item item) {
+            this.id = ResourceAdmission.holderOf(item);
+            this.displayName = item.task.getFullDisplayName();
+            this.item = item;
+            this.run = null;
+        }
+
+        /*package*/ Waiter(@Nonnull String id, @Nonnull Run<?, ?> run) {
+            this.id = id;
+            this.displayName = run.getFullDisplayName();
+            this.item = null;
+            this.run = run;
+        }
+
+        /**
+         * Identifier unique among waiters.
+         */
+        public @Nonnull String getId() {
+            return id;
+        }
+
+        public @Nonnull String getDisplayName() {
+            return displayName;
+        }
+
+        /**
+         * Queue item blocked from starting, null for pipeline steps.
+         */
+        public @CheckForNull Queue.Item getItem() {
+            return item;
+        }
+
+        /**
+         * Build waiting in a pipeline step, null for queue items.
+         */
+        public @CheckForNull Run<?, ?> getRun() {
+            return run;
+        }
+
+        /**
+         * When the waiter blocked, unblocked or was cancelled. Listeners are notified later, on a different thread.
+         */
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        @Override
+        public String toString() {
+            return displayName;
+        }
+    }
+}
@@ -23,21 +23,34 @@ package io.jenkins.plugins.gating;
 
 import hudson.Extension;
 import hudson.ExtensionList;
+import hudson.Functions;
+import hudson.model.Job;
 import hudson.model.RootAction;
 import hudson.util.FormValidation;
-import org.jenkinsci.Symbol;
+import jenkins.model.Jenkins;
+import jenkins.util.SystemProperties;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
 import org.kohsuke.accmod.Restricted;
 import org.kohsuke.accmod.restrictions.NoExternalUse;
+import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.StaplerRequest2;
+import org.kohsuke.stapler.StaplerResponse2;
 
 import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
 import javax.annotation.concurrent.GuardedBy;
+import java.io.IOException;
+import java.util.AbstractMap;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
 import java.util.TreeMap;
 import java.util.function.Predicate;
 import java.util.logging.Logger;
@@ -49,11 +62,20 @@ public final class GatingMetrics implements RootAction {
     private static final String REGEX = "^[a-zA-Z0-9_-]+$";
     private static final Predicate<String> SOURCE_LABEL_PREDICATE = Pattern.compile(REGEX).asPredicate();
 
+    private static final int MAX_RESOURCES = SystemProperties.getInteger(GatingMetrics.class.getName() + ".maxResources", 100_000);
+    private static final long MAX_BYTES = SystemProperties.getLong(GatingMetrics.class.getName() + ".maxBytes", 64L << 20);
+
     public static final @Nonnull String DELIM = "/";
     public static final Comparator<String> RESOURCE_ID_COMPARATOR = String::compareToIgnoreCase;
 
     private @Nonnull final Object metricsLock = new Object();
 
+    private @Nonnull final MetricsIngestion ingestion = new MetricsIngestion(this);
+
+    private @Nonnull final ProviderRegistry providers = new ProviderRegistry();
+
+    private @Nonnull final MaintenanceSchedule maintenance = new MaintenanceSchedule();
+
     /**
      * Map of metrics source to metrics snapshot. All resource names provided are expected to be prefixed with the source
      * label making sure resource names does not collide across sources. Snapshot handles resource names in certain source
@@ -67,10 +89,17 @@ public final class GatingMetrics implements RootAction {
     /**
      * Map of all resources.
      *
-     * This is a cache to be invalidated when resource update arrives and populated when requested.
+     * This is a cache to be invalidated when resource update arrives and populated when requested. The map is a view
+     * delegating to the snapshots, so populating it does not copy the resources.
      */
     @GuardedBy("metricsLock")
-    private @CheckForNull Map<String, MetricsSnapshot.Resource> resourceMap = null;
+    private @CheckForNull AllResources resourceMap = null;
+
+    /**
+     * Rollup of resource categories by hierarchical resource name, updated with every change.
+     */
+    @GuardedBy("metricsLock")
+    private final @Nonnull ResourceTree resourceTree = new ResourceTree();
 
     /**
      * Map of errors updating data.
@@ -78,7 +107,7 @@ public final class GatingMetrics implements RootAction {
      * Errors does not remove latest reported metrics, but reported data should remove the latest error.
      */
     @GuardedBy("metricsLock")
-    private final @Nonnull Map<String, MetricsSnapshot.Error> errorMap = new HashMap<>();
+    private final @Nonnull Map<String, ErrorRecord> errorMap = new HashMap<>();
 
     public static @Nonnull GatingMetrics get() {
         return ExtensionList.lookupSingleton(GatingMetrics.class);
@@ -107,6 +136,20 @@ public final class GatingMetrics implements RootAction {
 
     @Restricted(NoExternalUse.class)
     public @Nonnull Map<String, MetricsSnapshot.Error> getErrors() {
+        synchronized (metricsLock) {
+            if (errorMap.isEmpty()) return Collections.emptyMap();
+
+            Map<String, MetricsSnapshot.Error> errors = new HashMap<>();
+            errorMap.forEach((label, record) -> errors.put(label, record.getLatest()));
+            return errors;
+        }
+    }
+
+    /**
+     * Errors reported per source label since its last successful update.
+     */
+    @Restricted(NoExternalUse.class)
+    public @Nonnull Map<String, ErrorRecord> getErrorRecords() {
         synchronized (metricsLock) {
             if (errorMap.isEmpty()) return Collections.emptyMap();
 
@@ -118,107 +161,462 @@ public final class GatingMetrics implements RootAction {
      * Get all resources and their status. The collection is immutable.
      */
     public @Nonnull Map<String, MetricsSnapshot.Resource> getStatusOfAllResources() {
+        return getAllResources();
+    }
+
+    /*package*/ @Nonnull AllResources getAllResources() {
         synchronized (metricsLock) {
             if (resourceMap != null) return resourceMap;
 
-            Map<String, MetricsSnapshot.Resource> statuses = new TreeMap<>(RESOURCE_ID_COMPARATOR);
-            for (MetricsSnapshot snapshot : metricsMap.values()) {
-                // Names are guaranteed not to collide
-                statuses.putAll(snapshot.getStatuses());
+            GatingEvents.ResourceMapRebuild event = new GatingEvents.ResourceMapRebuild();
+            event.begin();
+            resourceMap = new AllResources(this, metricsMap.values());
+            event.end();
+            if (event.shouldCommit()) {
+                event.sources = metricsMap.size();
+                event.resources = resourceMap.size();
+                event.commit();
             }
-
-            resourceMap = Collections.unmodifiableMap(statuses);
             return resourceMap;
         }
     }
 
+    /**
+     * Count resources per category in the subtree of given path, such as a source label.
+     *
+     * @return null when no resources are reported in the subtree.
+     */
+    public @CheckForNull ResourceRollup getRollup(@Nonnull String path) {
+        synchronized (metricsLock) {
+            return resourceTree.rollup(path);
+        }
+    }
+
+    /**
+     * Stream changes of resources to the page as server-sent events.
+     */
     @Restricted(NoExternalUse.class)
-    public List<String> getDetectedConflicts() {
-        ArrayList<String> conflictMessages = new ArrayList<>();
-
-        Map<String, MetricsProvider> labelToProvider = new HashMap<>();
-        for (MetricsProvider provider : ExtensionList.lookup(MetricsProvider.class)) {
-            for (String label : provider.getLabels()) {
-                FormValidation validation = validateLabel(label);
-                if (validation.kind != FormValidation.Kind.OK) {
-                    conflictMessages.add(validation.getMessage());
-                }
+    public void doEvents(@Nonnull StaplerRequest2 req, @Nonnull StaplerResponse2 rsp) throws IOException {
+        Jenkins.get().checkPermission(Job.CONFIGURE);
+        GatingEventStream.get().connect(req, rsp);
+    }
 
-                MetricsProvider existingProvider = labelToProvider.get(label);
-                if (existingProvider != null) {
-                    conflictMessages.add(labelConflictError(provider, existingProvider, label));
-                } else {
-                    labelToProvider.put(label, provider);
-                }
+    /**
+     * Jobs depending on the resource, and the builds waiting for it, as JSON.
+     */
+    @Restricted(NoExternalUse.class)
+    public void doImpact(@Nonnull StaplerResponse2 rsp, @QueryParameter String resource) throws IOException {
+        Jenkins.get().checkPermission(Job.CONFIGURE);
+        if (resource == null || resource.isEmpty()) {
+            rsp.sendError(StaplerResponse2.SC_BAD_REQUEST, "Parameter resource is required");
+            return;
+        }
+
+        GatedJobIndex.Impact impact = GatedJobIndex.get().getImpact(resource);
+        JSONArray jobs = new JSONArray();
+        for (String fullName : impact.getJobs()) {
+            // Only list jobs the user can see
+            Job<?, ?> job = Jenkins.get().getItemByFullName(fullName, Job.class);
+            if (job != null) {
+                jobs.add(new JSONObject().element("name", fullName).element("url", job.getUrl()));
             }
         }
 
-        return conflictMessages;
+        JSONObject json = new JSONObject()
+                .element("resource", resource)
+                .element("jobs", jobs)
+                .element("queued", impact.getQueued())
+                .element("paused", impact.getPaused())
+        ;
+        rsp.setContentType("application/json;charset=UTF-8");
+        rsp.getWriter().print(json);
+    }
+
+    /**
+     * Gated work blocked if the resources had the statuses given, as JSON.
+     *
+     * Resource names are passed as values of parameters named by the status category, such as {@code ?down=a/b&down=a/c}.
+     */
+    @Restricted(NoExternalUse.class)
+    public void doSimulate(@Nonnull StaplerRequest2 req, @Nonnull StaplerResponse2 rsp) throws IOException {
+        Jenkins.get().checkPermission(Job.CONFIGURE);
+        Map<String, ResourceStatus> overrides = new TreeMap<>(RESOURCE_ID_COMPARATOR);
+        for (ResourceStatus.Category category : ResourceStatus.Category.values()) {
+            String[] names = req.getParameterValues(category.name().toLowerCase(Locale.ROOT));
+            if (names == null) continue;
+
+            for (String name : names) {
+                overrides.put(name, category);
+            }
+        }
+        if (overrides.isEmpty()) {
+            rsp.sendError(StaplerResponse2.SC_BAD_REQUEST, "No hypothetical status given, use parameters such as down=<resource>");
+            return;
+        }
+
+        GatingSimulation.Report report = GatingSimulation.simulate(overrides);
+        JSONObject resources = new JSONObject();
+        overrides.forEach((name, status) -> resources.element(name, status.toString()));
+        JSONObject json = new JSONObject()
+                .element("resources", resources)
+                .element("jobs", toJson(report.getJobs()))
+                .element("queued", toJson(report.getQueued()))
+                .element("paused", toJson(report.getPaused()))
+        ;
+        rsp.setContentType("application/json;charset=UTF-8");
+        rsp.getWriter().print(json);
+    }
+
+    private static @Nonnull JSONArray toJson(@Nonnull List<GatingSimulation.Outcome> outcomes) {
+        JSONArray array = new JSONArray();
+        for (GatingSimulation.Outcome outcome : outcomes) {
+            JSONObject json = new JSONObject()
+                    .element("name", outcome.getName())
+                    .element("reason", outcome.getBlockage().getShortDescription())
+                    .element("blockedNow", outcome.isBlockedNow())
+            ;
+            if (outcome.getUrl() != null) {
+                json.element("url", outcome.getUrl());
+            }
+            array.add(json);
+        }
+        return array;
+    }
+
+    @Restricted(NoExternalUse.class)
+    public List<String> getDetectedConflicts() {
+        return new ArrayList<>(providers.get().getConflicts());
+    }
+
+    /**
+     * Journal of gating decisions, exposed at {@code /gating/journal}.
+     */
+    @Restricted(NoExternalUse.class)
+    public @Nonnull GatingJournal getJournal() {
+        Jenkins.get().checkPermission(Job.CONFIGURE);
+        return GatingJournal.get();
+    }
+
+    /*package*/ @Nonnull ProviderRegistry getProviderRegistry() {
+        return providers;
     }
 
     public void update(@Nonnull MetricsSnapshot snapshot) {
         String sourceLabel = snapshot.getSourceLabel();
         LOGGER.fine("Received metrics update for source " + sourceLabel);
+        if (!isClaimedBy(sourceLabel, snapshot.getProvider())) return;
 
+        String overLimit = checkLimits(snapshot);
+        if (overLimit != null) {
+            // Keep the data received before, the same as when the source fails
+            reportError(new MetricsSnapshot.Error(snapshot.getProvider(), sourceLabel, overLimit, null, false));
+            return;
+        }
+
+        GatingEvents.Update event = new GatingEvents.Update();
+        event.begin();
+
+        MetricsSnapshot previous;
+        synchronized (metricsLock) {
+            if (!isMatchingProvider(sourceLabel, snapshot.getProvider())) return;
+
+            previous = metricsMap.get(sourceLabel);
+        }
+
+        // Do not hold the lock while comparing with the previous data
+        MetricsSnapshot deduplicated = snapshot.deduplicate(previous);
+
+        boolean changed;
+        MetricsSnapshot replaced;
+        int changedResources = 0;
+        long lockRequested = event.isEnabled() ? System.nanoTime() : 0;
         synchronized (metricsLock) {
+            long lockAcquired = event.isEnabled() ? System.nanoTime() : 0;
             if (!isMatchingProvider(sourceLabel, snapshot.getProvider())) return;
 
-            metricsMap.put(sourceLabel, snapshot);
+            replaced = metricsMap.put(sourceLabel, deduplicated);
             errorMap.remove(sourceLabel); // Erase previous error
-            resourceMap = null; // Invalidate cache
+
+            // Unless updated concurrently, the unchanged resources are identical to the replaced ones
+            changed = replaced == null || replaced != previous || !deduplicated.hasSameResources(replaced);
+            if (changed) {
+                resourceMap = null; // Invalidate cache
+                changedResources = resourceTree.replace(replaced, deduplicated);
+            }
+
+            if (event.isEnabled()) {
+                event.lockWait = lockAcquired - lockRequested;
+                event.lockHeld = System.nanoTime() - lockAcquired;
+            }
+        }
+
+        event.end();
+        if (event.shouldCommit()) {
+            event.source = sourceLabel;
+            event.resources = deduplicated.size();
+            event.changed = changedResources;
+            event.commit();
         }
 
-        // TODO Only when something changed
-        GatingStep.metricsUpdated();
+        if (changed) {
+            GatingListener.fireResourcesChanged(replaced, deduplicated);
+            SharedMetricsStore.get().metricsChanged(deduplicated);
+            GatingStep.metricsUpdated();
+        }
+    }
+
+    /**
+     * Replace the planned maintenance windows of the source label.
+     *
+     * Windows already ended are ignored, pass an empty list to remove all windows of the source. The windows are kept in
+     * memory only, providers are expected to report them again after Jenkins starts, the same as the metrics.
+     */
+    public void updateMaintenance(@Nonnull MetricsProvider provider, @Nonnull String sourceLabel, @Nonnull List<MaintenanceWindow> windows) {
+        FormValidation validation = validateLabel(sourceLabel);
+        if (validation.kind != FormValidation.Kind.OK) throw new IllegalArgumentException(validation);
+        for (MaintenanceWindow window : windows) {
+            if (!window.getResource().startsWith(sourceLabel + DELIM)) {
+                throw new IllegalArgumentException(String.format(
+                        "Resource name (%s) not prefixed with source label (%s%s)", window.getResource(), sourceLabel, DELIM
+                ));
+            }
+        }
+        if (!isClaimedBy(sourceLabel, provider)) return;
+
+        maintenance.update(sourceLabel, windows);
+    }
+
+    /**
+     * Maintenance windows of all sources not yet ended, ordered by their start.
+     */
+    public @Nonnull List<MaintenanceWindow> getMaintenanceWindows() {
+        return maintenance.getWindows();
+    }
+
+    /*package*/ @Nonnull MaintenanceSchedule getMaintenance() {
+        return maintenance;
+    }
+
+    /**
+     * Schedule the snapshot to be applied asynchronously.
+     *
+     * Unlike {@link #update(MetricsSnapshot)}, this returns right away. When several snapshots are submitted for the
+     * same source label before they are applied, only the latest one is.
+     *
+     * @return false if the update was dropped as the ingestion queue is full.
+     */
+    public boolean submit(@Nonnull MetricsSnapshot snapshot) {
+        return ingestion.submit(snapshot);
+    }
+
+    /**
+     * Schedule the error to be reported asynchronously.
+     *
+     * @return false if the error was dropped as the ingestion queue is full.
+     * @see #submit(MetricsSnapshot)
+     */
+    public boolean submitError(@Nonnull MetricsSnapshot.Error error) {
+        return ingestion.submit(error);
     }
 
     public void reportError(MetricsSnapshot.Error error) {
         String sourceLabel = error.getSourceLabel();
-        LOGGER.info("Received error for source " + sourceLabel);
+        if (!isClaimedBy(sourceLabel, error.getProvider())) return;
 
+        ErrorRecord record;
         synchronized (metricsLock) {
             if (!isMatchingProvider(sourceLabel, error.getProvider())) return;
 
             // Track error. Do not remove latest known data, nor the cache.
-            errorMap.put(sourceLabel, error);
+            record = ErrorRecord.next(errorMap.get(sourceLabel), error);
+            errorMap.put(sourceLabel, record);
+        }
+
+        if (record.isLogged()) {
+            LOGGER.info(String.format(
+                    "Received error for source %s: %s (%d in a row since %s)",
+                    sourceLabel, error.getMessage(), record.getCount(), record.getFirstSeen()
+            ));
+        } else {
+            LOGGER.fine("Received error for source " + sourceLabel + ": " + error.getMessage());
+        }
+    }
+
+    /**
+     * Maximal number of resources retained for the source label.
+     *
+     * Configured by {@code io.jenkins.plugins.gating.GatingMetrics.maxResources} system property, or with the source
+     * label appended for a single source.
+     */
+    @Restricted(NoExternalUse.class)
+    public static int getMaxResources(@Nonnull String sourceLabel) {
+        return SystemProperties.getInteger(GatingMetrics.class.getName() + ".maxResources." + sourceLabel, MAX_RESOURCES);
+    }
+
+    /**
+     * Maximal estimated number of bytes retained for the source label.
+     *
+     * Configured by {@code io.jenkins.plugins.gating.GatingMetrics.maxBytes} system property, or with the source label
+     * appended for a single source.
+     */
+    @Restricted(NoExternalUse.class)
+    public static long getMaxBytes(@Nonnull String sourceLabel) {
+        return SystemProperties.getLong(GatingMetrics.class.getName() + ".maxBytes." + sourceLabel, MAX_BYTES);
+    }
+
+    /**
+     * @return null when within limits, reasoning otherwise.
+     */
+    private static @CheckForNull String checkLimits(@Nonnull MetricsSnapshot snapshot) {
+        String sourceLabel = snapshot.getSourceLabel();
+        int maxResources = getMaxResources(sourceLabel);
+        if (snapshot.size() > maxResources) {
+            return String.format("Snapshot rejected, %d resources exceed the limit of %d", snapshot.size(), maxResources);
         }
+
+        long maxBytes = getMaxBytes(sourceLabel);
+        if (snapshot.getEstimatedSize() > maxBytes) {
+            return String.format(
+                    "Snapshot rejected, estimated %s exceed the limit of %s",
+                    Functions.humanReadableByteSize(snapshot.getEstimatedSize()), Functions.humanReadableByteSize(maxBytes)
+            );
+        }
+        return null;
+    }
+
+    /**
+     * Reject reports for labels claimed by a different provider, without waiting for the lock.
+     */
+    private boolean isClaimedBy(String sourceLabel, MetricsProvider incomingProvider) {
+        ProviderRegistry.Claims claims = providers.get();
+        if (claims.accepts(sourceLabel, incomingProvider)) return true;
+
+        LOGGER.severe(ProviderRegistry.labelConflictError(incomingProvider, claims.ownerOf(sourceLabel), sourceLabel));
+        return false;
     }
 
     private boolean isMatchingProvider(String sourceLabel, MetricsProvider incomingProvider) {
         MetricsSnapshot oldData = metricsMap.get(sourceLabel);
         if (oldData != null && oldData.getProvider() != incomingProvider) {
             // Source label conflict - ignore all but first
-            LOGGER.severe(labelConflictError(incomingProvider, oldData.getProvider(), sourceLabel));
+            LOGGER.severe(ProviderRegistry.labelConflictError(incomingProvider, oldData.getProvider(), sourceLabel));
             return false;
         }
-        MetricsSnapshot.Error oldError = errorMap.get(sourceLabel);
-        if (oldError != null && oldError.getProvider() != incomingProvider) {
+        ErrorRecord oldError = errorMap.get(sourceLabel);
+        if (oldError != null && oldError.getLatest().getProvider() != incomingProvider) {
             // Source label conflict - ignore all but first
-            LOGGER.severe(labelConflictError(incomingProvider, oldError.getProvider(), sourceLabel));
+            LOGGER.severe(ProviderRegistry.labelConflictError(incomingProvider, oldError.getLatest().getProvider(), sourceLabel));
             return false;
         }
 
         return true;
     }
 
-    private String labelConflictError(MetricsProvider lhs, MetricsProvider rhs, String sourceLabel) {
-        return String.format(
-                "Providers %s and %s have a colliding sourceLabel %s. Ignoring metrics update.",
-                getProviderDescription(lhs),
-                getProviderDescription(rhs),
-                sourceLabel
-        );
-    }
-
-    private String getProviderDescription(MetricsProvider p) {
-        Symbol s = p.getClass().getAnnotation(Symbol.class);
-        return s == null ? p.toString() : s.value()[0];
-    }
-
     public static FormValidation validateLabel(@CheckForNull String label) {
         boolean valid = label != null && SOURCE_LABEL_PREDICATE.test(label);
         if (valid) return FormValidation.ok();
 
         return FormValidation.error("Invalid source label name: " + label + ". Must match /" + REGEX + "/.");
     }
+
+    /**
+     * Immutable view of resources of all snapshots.
+     *
+     * Lookups are delegated to the snapshot of the source label the resource name is prefixed with. Iteration requires
+     * all resources to be merged in order, which is done on first use.
+     */
+    /*package*/ static final class AllResources extends AbstractMap<String, MetricsSnapshot.Resource> implements ResourceView {
+        private final @Nonnull GatingMetrics owner;
+        private final @Nonnull Map<String, MetricsSnapshot> bySource = new TreeMap<>(RESOURCE_ID_COMPARATOR);
+        private final int size;
+        private volatile @CheckForNull Map<String, MetricsSnapshot.Resource> merged;
+
+        private AllResources(@Nonnull GatingMetrics owner, @Nonnull Collection<MetricsSnapshot> snapshots) {
+            this.owner = owner;
+            int size = 0;
+            for (MetricsSnapshot snapshot : snapshots) {
+                bySource.put(snapshot.getSourceLabel(), snapshot);
+                size += snapshot.size();
+            }
+            this.size = size;
+        }
+
+        private @CheckForNull MetricsSnapshot snapshotOf(@Nonnull String name) {
+            int delim = name.indexOf(DELIM);
+            return delim < 1 ? null : bySource.get(name.substring(0, delim));
+        }
+
+        /**
+         * Status of the resource, null when not reported. Unlike {@link #get(Object)}, this does not create the resource.
+         */
+        @Override
+        public @CheckForNull ResourceStatus statusOf(@Nonnull String name) {
+            MetricsSnapshot snapshot = snapshotOf(name);
+            if (snapshot == null) return null;
+
+            int index = snapshot.indexOf(name);
+            return index < 0 ? null : snapshot.statusAt(index);
+        }
+
+        @Override
+        public double metricOf(@Nonnull String sourceLabel, @Nonnull String name, @Nonnull String metric) {
+            MetricsSnapshot snapshot = bySource.get(sourceLabel);
+            if (snapshot == null) return Double.NaN;
+
+            int index = snapshot.indexOf(name);
+            return index < 0 ? Double.NaN : snapshot.metricAt(index, metric);
+        }
+
+        /**
+         * Current rollup, the tree is not part of the cached view.
+         */
+        @Override
+        public @CheckForNull ResourceRollup rollup(@Nonnull String path) {
+            return owner.getRollup(path);
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            if (!(key instanceof String name)) return false;
+
+            MetricsSnapshot snapshot = snapshotOf(name);
+            return snapshot != null && snapshot.indexOf(name) >= 0;
+        }
+
+        @Override
+        public @CheckForNull MetricsSnapshot.Resource get(Object key) {
+            if (!(key instanceof String name)) return null;
+
+            MetricsSnapshot snapshot = snapshotOf(name);
+            return snapshot == null ? null : snapshot.getStatuses().get(name);
+        }
+
+        @Override
+        public @Nonnull Set<Entry<String, MetricsSnapshot.Resource>> entrySet() {
+            Map<String, MetricsSnapshot.Resource> merged = this.merged;
+            if (merged == null) {
+                GatingEvents.ResourceMapRebuild event = new GatingEvents.ResourceMapRebuild();
+                event.begin();
+                TreeMap<String, MetricsSnapshot.Resource> statuses = new TreeMap<>(RESOURCE_ID_COMPARATOR);
+                for (MetricsSnapshot snapshot : bySource.values()) {
+                    // Names are guaranteed not to collide
+                    statuses.putAll(snapshot.getStatuses());
+                }
+                merged = this.merged = Collections.unmodifiableMap(statuses);
+                event.end();
+                if (event.shouldCommit()) {
+                    event.sources = bySource.size();
+                    event.resources = size;
+                    event.merged = true;
+                    event.commit();
+                }
+            }
+            return merged.entrySet();
+        }
+    }
 }
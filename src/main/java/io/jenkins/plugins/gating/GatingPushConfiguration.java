@@ -0,0 +1,146 @@
+/*
+ * Copyright (c) Red Hat, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.jenkins.plugins.gating;
+
+import hudson.Extension;
+import hudson.ExtensionList;
+import hudson.model.AbstractDescribableImpl;
+import hudson.model.Descriptor;
+import hudson.util.FormValidation;
+import hudson.util.Secret;
+import jenkins.model.GlobalConfiguration;
+import org.jenkinsci.Symbol;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+import org.kohsuke.stapler.QueryParameter;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Source labels external monitors push their metrics to, see {@link GatingPushEndpoint}.
+ */
+@Extension
+@Symbol("gatingPush")
+public final class GatingPushConfiguration extends GlobalConfiguration implements MetricsProvider {
+
+    private @Nonnull List<PushSource> sources = Collections.emptyList();
+
+    public GatingPushConfiguration() {
+        load();
+    }
+
+    public static @Nonnull GatingPushConfiguration get() {
+        return ExtensionList.lookupSingleton(GatingPushConfiguration.class);
+    }
+
+    public @Nonnull List<PushSource> getSources() {
+        return sources;
+    }
+
+    @DataBoundSetter
+    public void setSources(@CheckForNull List<PushSource> sources) {
+        this.sources = sources == null ? Collections.emptyList() : Collections.unmodifiableList(new ArrayList<>(sources));
+        save();
+
+        // Do not keep what was pushed to the removed sources
+        Set<String> labels = getLabels();
+        for (GatingPushEndpoint endpoint : ExtensionList.lookup(GatingPushEndpoint.class)) {
+            endpoint.retain(labels);
+        }
+    }
+
+    @Override
+    public @Nonnull Set<String> getLabels() {
+        Set<String> labels = new TreeSet<>(GatingMetrics.RESOURCE_ID_COMPARATOR);
+        for (PushSource source : sources) {
+            labels.add(source.getLabel());
+        }
+        return labels;
+    }
+
+    /**
+     * Find the source the token permits to push to. Labels are case insensitive.
+     *
+     * @return null if the source does not exist or the token does not match.
+     */
+    /*package*/ @CheckForNull PushSource authenticate(@Nonnull String label, @CheckForNull String token) {
+        if (token == null) return null;
+
+        byte[] presented = token.getBytes(StandardCharsets.UTF_8);
+        for (PushSource source : sources) {
+            if (GatingMetrics.RESOURCE_ID_COMPARATOR.compare(source.getLabel(), label) != 0) continue;
+
+            byte[] expected = source.getToken().getPlainText().getBytes(StandardCharsets.UTF_8);
+            if (expected.length == 0) return null;
+
+            // Constant time comparison
+            return MessageDigest.isEqual(expected, presented) ? source : null;
+        }
+        return null;
+    }
+
+    public static final class PushSource extends AbstractDescribableImpl<PushSource> {
+        private final @Nonnull String label;
+        private final @Nonnull Secret token;
+
+        @DataBoundConstructor
+        public PushSource(@Nonnull String label, @Nonnull Secret token) {
+            this.label = label;
+            this.token = token;
+        }
+
+        public @Nonnull String getLabel() {
+            return label;
+        }
+
+        public @Nonnull Secret getToken() {
+            return token;
+        }
+
+        @Extension
+        public static final class Desc extends Descriptor<PushSource> {
+            @Override
+            public @Nonnull String getDisplayName() {
+                return "Pushed source";
+            }
+
+            public FormValidation doCheckLabel(@QueryParameter String value) {
+                return GatingMetrics.validateLabel(value);
+            }
+
+            public FormValidation doCheckToken(@QueryParameter String value) {
+                return Secret.fromString(value).getPlainText().isEmpty()
+                        ? FormValidation.error("Token must not be empty")
+                        : FormValidation.ok()
+                ;
+            }
+        }
+    }
+}
@@ -0,0 +1,293 @@
+/*
+ * Copyright (c) Red Hat, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.jenkins.plugins.gating;
+
+import hudson.Extension;
+import hudson.Functions;
+import hudson.model.UnprotectedRootAction;
+import hudson.security.csrf.CrumbExclusion;
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import jenkins.util.SystemProperties;
+import net.sf.json.JSONException;
+import net.sf.json.JSONObject;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+import org.kohsuke.stapler.HttpResponse;
+import org.kohsuke.stapler.HttpResponses;
+import org.kohsuke.stapler.StaplerRequest2;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+/**
+ * Endpoint external monitors push resource statuses to, without implementing a plugin.
+ *
+ * {@code POST /gating-push/<source-label>} with the source token in {@code Authorization: Bearer <token>} or
+ * {@code X-Gating-Token} header. The body is newline delimited JSON, one resource per line:
+ *
+ * <pre>
+ * {"resource": "label/name", "status": "UP", "description": "...", "capacity": 4, "metrics": {"latency_ms": 120}}
+ * {"resource": "label/gone", "removed": true}
+ * </pre>
+ *
+ * The batch is applied as a delta to the resources pushed before, unless {@code ?replace=true} is given. Malformed
+ * batches, and batches exceeding the limits of the source label, are rejected as a whole.
+ */
+@Extension
+@Restricted(NoExternalUse.class)
+public final class GatingPushEndpoint implements UnprotectedRootAction {
+    private static final Logger LOGGER = Logger.getLogger(GatingPushEndpoint.class.getName());
+    private static final String URL_NAME = "gating-push";
+
+    /**
+     * Longest line accepted, in characters.
+     */
+    private static final int MAX_LINE = SystemProperties.getInteger(GatingPushEndpoint.class.getName() + ".maxLine", 64 * 1024);
+
+    /**
+     * Latest snapshot produced per source label, the base for the next delta.
+     *
+     * The snapshots are applied asynchronously, so the ones in {@link GatingMetrics} can lag behind.
+     */
+    private final @Nonnull Map<String, MetricsSnapshot> pushed = new ConcurrentHashMap<>();
+
+    @Override
+    public @CheckForNull String getIconFileName() {
+        return null;
+    }
+
+    @Override
+    public @CheckForNull String getDisplayName() {
+        return null;
+    }
+
+    @Override
+    public @Nonnull String getUrlName() {
+        return URL_NAME;
+    }
+
+    public @Nonnull HttpResponse doDynamic(@Nonnull StaplerRequest2 req) throws IOException {
+        if (!"POST".equals(req.getMethod())) return HttpResponses.status(HttpServletResponse.SC_METHOD_NOT_ALLOWED);
+
+        GatingPushConfiguration config = GatingPushConfiguration.get();
+        GatingPushConfiguration.PushSource source = config.authenticate(req.getRestOfPath().replaceFirst("^/", ""), getToken(req));
+        if (source == null) {
+            // Do not reveal what source labels exist
+            return HttpResponses.errorWithoutStack(HttpServletResponse.SC_FORBIDDEN, "Invalid source label or token");
+        }
+        // As configured, regardless of the case used by the pusher
+        String label = source.getLabel();
+
+        Map<String, MetricsSnapshot.Resource> delta;
+        try (BufferedReader reader = req.getReader()) {
+            delta = parse(reader, label);
+        } catch (IllegalArgumentException ex) {
+            return HttpResponses.errorWithoutStack(HttpServletResponse.SC_BAD_REQUEST, ex.getMessage());
+        }
+
+        MetricsSnapshot snapshot;
+        boolean submitted;
+        // Serialize pushes to the same source so no delta is lost
+        synchronized (source) {
+            try {
+                snapshot = apply(config, label, delta, Boolean.parseBoolean(req.getParameter("replace")));
+            } catch (IllegalArgumentException ex) {
+                return HttpResponses.errorWithoutStack(HttpServletResponse.SC_BAD_REQUEST, ex.getMessage());
+            }
+            pushed.put(label, snapshot);
+            submitted = GatingMetrics.get().submit(snapshot);
+        }
+
+        if (!submitted) {
+            LOGGER.warning("Metrics pushed to " + label + " dropped as the ingestion queue is full");
+            return HttpResponses.errorWithoutStack(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Ingestion queue is full");
+        }
+        return HttpResponses.status(HttpServletResponse.SC_ACCEPTED);
+    }
+
+    /**
+     * Forget the snapshots pushed to sources no longer configured.
+     */
+    /*package*/ void retain(@Nonnull Set<String> labels) {
+        pushed.keySet().retainAll(labels);
+    }
+
+    /*package*/ @Nonnull Set<String> getPushedLabels() {
+        return Collections.unmodifiableSet(pushed.keySet());
+    }
+
+    private static @CheckForNull String getToken(@Nonnull StaplerRequest2 req) {
+        String authorization = req.getHeader("Authorization");
+        if (authorization != null && authorization.regionMatches(true, 0, "Bearer ", 0, 7)) {
+            return authorization.substring(7).trim();
+        }
+        return req.getHeader("X-Gating-Token");
+    }
+
+    /**
+     * Parse the batch line by line, enforcing the limits of the source label as it is read.
+     *
+     * @return Resources sorted by name, null value for removed ones.
+     */
+    /*package*/ static @Nonnull Map<String, MetricsSnapshot.Resource> parse(
+            @Nonnull Reader reader, @Nonnull String label
+    ) throws IOException {
+        int maxResources = GatingMetrics.getMaxResources(label);
+        long maxBytes = GatingMetrics.getMaxBytes(label);
+
+        Map<String, MetricsSnapshot.Resource> delta = new TreeMap<>(GatingMetrics.RESOURCE_ID_COMPARATOR);
+        // Overestimated with duplicates
+        int added = 0;
+        int removed = 0;
+        long read = 0;
+        int lineNumber = 0;
+        StringBuilder line = new StringBuilder();
+        for (int c = 0; c != -1; ) {
+            c = reader.read();
+            if (c != -1 && c != '\n') {
+                // The batch is larger than what is retained of it, so no batch within the limit is rejected
+                if (++read > maxBytes) {
+                    throw new IllegalArgumentException("Batch exceeds the limit of " + Functions.humanReadableByteSize(maxBytes));
+                }
+                if (line.length() == MAX_LINE) {
+                    throw new IllegalArgumentException("Line " + (lineNumber + 1) + " exceeds the limit of " + MAX_LINE + " characters");
+                }
+                line.append((char) c);
+                continue;
+            }
+
+            lineNumber++;
+            String text = line.toString();
+            line.setLength(0);
+            if (text.isBlank()) continue;
+
+            try {
+                JSONObject json = JSONObject.fromObject(text);
+                String name = json.getString("resource");
+                boolean remove = json.optBoolean("removed");
+                if (remove ? ++removed > maxResources : ++added > maxResources) {
+                    throw new IllegalArgumentException("Batch exceeds the limit of " + maxResources + " resources");
+                }
+                delta.put(name, remove ? null : toResource(name, json));
+            } catch (JSONException | IllegalArgumentException ex) {
+                throw new IllegalArgumentException("Invalid resource on line " + lineNumber + ": " + ex.getMessage(), ex);
+            }
+        }
+        return delta;
+    }
+
+    private static @Nonnull MetricsSnapshot.Resource toResource(@Nonnull String name, @Nonnull JSONObject json) {
+        ResourceStatus.Category status = ResourceStatus.Category.valueOf(json.getString("status"));
+
+        Map<String, Double> metrics = Collections.emptyMap();
+        JSONObject values = json.optJSONObject("metrics");
+        if (values != null && !values.isNullObject()) {
+            metrics = new HashMap<>();
+            for (Object metric : values.keySet()) {
+                metrics.put((String) metric, values.getDouble((String) metric));
+            }
+        }
+
+        return new MetricsSnapshot.Resource(
+                name,
+                status,
+                json.optString("description", null),
+                json.optInt("capacity", MetricsSnapshot.Resource.UNLIMITED),
+                metrics
+        );
+    }
+
+    /**
+     * Merge the sorted delta with the base snapshot, sorted as well, so the builder gets the resources in order.
+     */
+    private @Nonnull MetricsSnapshot apply(
+            @Nonnull GatingPushConfiguration provider,
+            @Nonnull String label,
+            @Nonnull Map<String, MetricsSnapshot.Resource> delta,
+            boolean replace
+    ) {
+        MetricsSnapshot base = null;
+        if (!replace) {
+            base = pushed.get(label);
+            if (base == null) {
+                // Continue with what was applied before restart of Jenkins or reconfiguration
+                base = GatingMetrics.get().getMetrics().get(label);
+            }
+            if (base != null && base.getProvider() != provider) {
+                base = null;
+            }
+        }
+
+        int baseSize = base == null ? 0 : base.size();
+        // The builder enforces the limits of the source
+        MetricsSnapshot.Builder builder = MetricsSnapshot.builder(provider, label, baseSize + delta.size());
+        int b = 0;
+        for (Map.Entry<String, MetricsSnapshot.Resource> change : delta.entrySet()) {
+            int cmp = -1;
+            while (b < baseSize && (cmp = GatingMetrics.RESOURCE_ID_COMPARATOR.compare(base.nameAt(b), change.getKey())) < 0) {
+                builder.add(base.resourceAt(b++));
+            }
+            // Replaced or removed, names differing in case identify the same resource
+            if (cmp == 0) {
+                b++;
+            }
+            if (change.getValue() != null) {
+                builder.add(change.getValue());
+            }
+        }
+        while (b < baseSize) {
+            builder.add(base.resourceAt(b++));
+        }
+        return builder.build();
+    }
+
+    /**
+     * Pushers authenticate with a token, not a session, so there is no crumb to present.
+     */
+    @Extension
+    public static final class CrumbExclusionImpl extends CrumbExclusion {
+        @Override
+        public boolean process(
+                HttpServletRequest req, HttpServletResponse resp, FilterChain chain
+        ) throws IOException, ServletException {
+            String pathInfo = req.getPathInfo();
+            if (pathInfo != null && pathInfo.startsWith("/" + URL_NAME + "/")) {
+                chain.doFilter(req, resp);
+                return true;
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,257 @@
+/*
+ * Copyright (c) Red Hat, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.jenkins.plugins.gating;
+
+import hudson.model.Job;
+import hudson.model.Queue;
+import jenkins.model.Jenkins;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+
+/**
+ * Dry run of all gated work against hypothetical status of resources, such as before a planned maintenance.
+ *
+ * The targets are collected with the permissions of the caller, then evaluated in parallel against the current state
+ * with the hypothetical statuses laid over it, the same way {@link GatingDispatcher} does including the planned
+ * maintenance and the free capacity. Nothing is changed, blocked, nor notified.
+ */
+@Restricted(NoExternalUse.class)
+public final class GatingSimulation {
+    private static final ResourceStatus.Category[] CATEGORIES = ResourceStatus.Category.values();
+
+    private GatingSimulation() {}
+
+    /**
+     * @param overrides Hypothetical statuses by resource name.
+     */
+    public static @Nonnull Report simulate(@Nonnull Map<String, ? extends ResourceStatus> overrides) {
+        GatingMetrics metrics = GatingMetrics.get();
+        GatingMetrics.AllResources live = metrics.getAllResources();
+        Overlay hypothetical = new Overlay(live, overrides);
+
+        List<Target> jobs = new ArrayList<>();
+        Jenkins jenkins = Jenkins.get();
+        for (String fullName : GatedJobIndex.get().getGatedJobs()) {
+            Job<?, ?> job = jenkins.getItemByFullName(fullName, Job.class);
+            ResourceRequirementProperty property = job == null ? null : job.getProperty(ResourceRequirementProperty.class);
+            if (property != null) {
+                jobs.add(new Target(fullName, job.getUrl(), property, job.getEstimatedDuration(), null));
+            }
+        }
+
+        List<Target> queued = new ArrayList<>();
+        for (Queue.Item item : jenkins.getQueue().getItems()) {
+            if (!(item.task instanceof Job<?, ?> job)) continue;
+
+            ResourceRequirementProperty property = job.getProperty(ResourceRequirementProperty.class);
+            if (property != null) {
+                queued.add(new Target(
+                        item.task.getFullDisplayName(), item.getUrl(), property, job.getEstimatedDuration(), ResourceAdmission.holderOf(item)
+                ));
+            }
+        }
+
+        List<Target> paused = new ArrayList<>();
+        for (Map.Entry<String, ResourceRequirementProperty> step : GatingStep.getBlockedSteps()) {
+            // Steps are evaluated with no estimate, see GatingStep
+            paused.add(new Target(step.getKey(), null, step.getValue(), 0, null));
+        }
+
+        return new Report(
+                evaluate(jobs, metrics, live, hypothetical),
+                evaluate(queued, metrics, live, hypothetical),
+                evaluate(paused, metrics, live, hypothetical)
+        );
+    }
+
+    private static @Nonnull List<Outcome> evaluate(
+            @Nonnull List<Target> targets, @Nonnull GatingMetrics metrics, @Nonnull ResourceView live, @Nonnull ResourceView hypothetical
+    ) {
+        // Evaluation changes no state, so it is split over the common fork-join pool
+        return targets.parallelStream()
+                .map(target -> target.evaluate(metrics, live, hypothetical))
+                .filter(Objects::nonNull)
+                .toList()
+        ;
+    }
+
+    private static final class Target {
+        private final @Nonnull String name;
+        private final @CheckForNull String url;
+        private final @Nonnull ResourceRequirementProperty requirement;
+        private final long estimatedDuration;
+        private final @CheckForNull String holder;
+
+        private Target(
+                @Nonnull String name, @CheckForNull String url, @Nonnull ResourceRequirementProperty requirement,
+                long estimatedDuration, @CheckForNull String holder
+        ) {
+            this.name = name;
+            this.url = url;
+            this.requirement = requirement;
+            this.estimatedDuration = estimatedDuration;
+            this.holder = holder;
+        }
+
+        /**
+         * @return null when not blocked in the hypothetical state.
+         */
+        private @CheckForNull Outcome evaluate(@Nonnull GatingMetrics metrics, @Nonnull ResourceView live, @Nonnull ResourceView hypothetical) {
+            ResourceBlockage blockage = requirement.evaluate(metrics, hypothetical, estimatedDuration, holder);
+            if (blockage == null) return null;
+
+            boolean blockedNow = requirement.evaluate(metrics, live, estimatedDuration, holder) != null;
+            return new Outcome(name, url, blockage, blockedNow);
+        }
+    }
+
+    /**
+     * Current state of resources with some of the statuses replaced.
+     */
+    /*package*/ static final class Overlay implements ResourceView {
+        private final @Nonnull ResourceView base;
+        private final @Nonnull Map<String, ResourceStatus> overrides = new TreeMap<>(GatingMetrics.RESOURCE_ID_COMPARATOR);
+
+        /*package*/ Overlay(@Nonnull ResourceView base, @Nonnull Map<String, ? extends ResourceStatus> overrides) {
+            this.base = base;
+            this.overrides.putAll(overrides);
+        }
+
+        @Override
+        public @CheckForNull ResourceStatus statusOf(@Nonnull String name) {
+            ResourceStatus status = overrides.get(name);
+            return status != null ? status : base.statusOf(name);
+        }
+
+        @Override
+        public double metricOf(@Nonnull String sourceLabel, @Nonnull String name, @Nonnull String metric) {
+            return base.metricOf(sourceLabel, name, metric);
+        }
+
+        @Override
+        public @CheckForNull ResourceRollup rollup(@Nonnull String path) {
+            ResourceRollup rollup = base.rollup(path);
+            int[] counts = new int[CATEGORIES.length];
+            if (rollup != null) {
+                for (ResourceStatus.Category category : CATEGORIES) {
+                    counts[category.ordinal()] = rollup.getCount(category);
+                }
+            }
+
+            // Move the overridden resources in the subtree to their hypothetical category
+            boolean changed = false;
+            String prefix = path + GatingMetrics.DELIM;
+            for (Map.Entry<String, ResourceStatus> override : overrides.entrySet()) {
+                String name = override.getKey();
+                if (!name.equalsIgnoreCase(path) && !name.regionMatches(true, 0, prefix, 0, prefix.length())) continue;
+
+                ResourceStatus current = base.statusOf(name);
+                if (current != null) {
+                    counts[current.getCategory().ordinal()]--;
+                }
+                counts[override.getValue().getCategory().ordinal()]++;
+                changed = true;
+            }
+
+            if (!changed) return rollup;
+            return new ResourceRollup(rollup == null ? path : rollup.getPath(), counts);
+        }
+    }
+
+    public static final class Report {
+        private final @Nonnull List<Outcome> jobs;
+        private final @Nonnull List<Outcome> queued;
+        private final @Nonnull List<Outcome> paused;
+
+        private Report(@Nonnull List<Outcome> jobs, @Nonnull List<Outcome> queued, @Nonnull List<Outcome> paused) {
+            this.jobs = Collections.unmodifiableList(jobs);
+            this.queued = Collections.unmodifiableList(queued);
+            this.paused = Collections.unmodifiableList(paused);
+        }
+
+        /**
+         * Jobs that could not start.
+         */
+        public @Nonnull List<Outcome> getJobs() {
+            return jobs;
+        }
+
+        /**
+         * Queue items that would be blocked.
+         */
+        public @Nonnull List<Outcome> getQueued() {
+            return queued;
+        }
+
+        /**
+         * Paused {@code requireResources} steps that would stay blocked.
+         */
+        public @Nonnull List<Outcome> getPaused() {
+            return paused;
+        }
+    }
+
+    public static final class Outcome {
+        private final @Nonnull String name;
+        private final @CheckForNull String url;
+        private final @Nonnull ResourceBlockage blockage;
+        private final boolean blockedNow;
+
+        private Outcome(@Nonnull String name, @CheckForNull String url, @Nonnull ResourceBlockage blockage, boolean blockedNow) {
+            this.name = name;
+            this.url = url;
+            this.blockage = blockage;
+            this.blockedNow = blockedNow;
+        }
+
+        public @Nonnull String getName() {
+            return name;
+        }
+
+        /**
+         * URL relative to the Jenkins root, null for pipeline steps.
+         */
+        public @CheckForNull String getUrl() {
+            return url;
+        }
+
+        public @Nonnull ResourceBlockage getBlockage() {
+            return blockage;
+        }
+
+        /**
+         * Blocked with the current state of resources already.
+         */
+        public boolean isBlockedNow() {
+            return blockedNow;
+        }
+    }
+}
@@ -23,21 +23,44 @@ package io.jenkins.plugins.gating;
 
 import com.google.common.collect.ImmutableSet;
 import hudson.Extension;
+import hudson.model.Computer;
 import hudson.model.Run;
 import hudson.model.TaskListener;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import jenkins.util.Timer;
+import org.jenkinsci.plugins.workflow.steps.BodyExecutionCallback;
 import org.jenkinsci.plugins.workflow.steps.Step;
 import org.jenkinsci.plugins.workflow.steps.StepContext;
 import org.jenkinsci.plugins.workflow.steps.StepDescriptor;
 import org.jenkinsci.plugins.workflow.steps.StepExecution;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 
+import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
+import javax.annotation.concurrent.GuardedBy;
 import java.io.IOException;
 import java.io.Serial;
 import java.io.Serializable;
+import java.util.AbstractMap;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 public final class GatingStep extends Step implements Serializable {
@@ -45,9 +68,15 @@ public final class GatingStep extends Step implements Serializable {
     private static final long serialVersionUID = -4244024221933297123L;
     private static final Logger LOGGER = Logger.getLogger(GatingStep.class.getName());
 
+    // Not the common pool, that is shared by the whole controller
+    private static final ExecutorService RECHECKERS = createRecheckers();
+
     // List of execution to be probed when new metrics arrives
     private static final List<Execution> blockedExecutions = new ArrayList<>();
 
+    // For tests to change the metrics after the step evaluated them, and before it registered as blocked
+    /*package*/ static volatile @CheckForNull Runnable beforeRegistering;
+
     private final ResourceRequirementProperty requiredResources;
 
     @DataBoundConstructor
@@ -57,92 +86,345 @@ public final class GatingStep extends Step implements Serializable {
         requiredResources = new ResourceRequirementProperty(resources);
     }
 
+    public @CheckForNull String getThresholds() {
+        return requiredResources.getThresholds();
+    }
+
+    @DataBoundSetter
+    public void setThresholds(@CheckForNull String thresholds) {
+        requiredResources.setThresholds(thresholds);
+    }
+
     /*package*/ static void metricsUpdated() {
         ArrayList<Execution> executions;
         synchronized (blockedExecutions) {
             executions = new ArrayList<>(blockedExecutions);
         }
 
-        for (Execution blockedExecution : executions) {
-            try {
-                blockedExecution.recheck();
-            } catch (InterruptedException | IOException e) {
-                e.printStackTrace();
+        recheck(executions);
+    }
+
+    private static void recheck(@Nonnull Collection<Execution> executions) {
+        GatingEvents.Recheck event = new GatingEvents.Recheck();
+        event.begin();
+
+        // Evaluation is cheap, but reporting the outcome writes to the build log and resumes the body
+        List<Callable<Void>> rechecks = new ArrayList<>(executions.size());
+        for (Execution execution : executions) {
+            rechecks.add(() -> {
+                execution.recheck();
+                return null;
+            });
+        }
+        try {
+            for (Future<Void> recheck : RECHECKERS.invokeAll(rechecks)) {
+                try {
+                    recheck.get();
+                } catch (ExecutionException ex) {
+                    LOGGER.log(Level.WARNING, "Failed rechecking requireResources step", ex.getCause());
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+
+        event.end();
+        if (event.shouldCommit()) {
+            event.executions = executions.size();
+            event.commit();
+        }
+    }
+
+    private static @Nonnull ExecutorService createRecheckers() {
+        int threads = Runtime.getRuntime().availableProcessors();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                threads, threads, 1, TimeUnit.MINUTES, new LinkedBlockingQueue<>(),
+                new NamingThreadFactory(new DaemonThreadFactory(), "GatingStep recheck")
+        );
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Resources blocked executions are waiting for.
+     */
+    /*package*/ static @Nonnull Set<String> getWaitedForResources() {
+        Set<String> resources = new HashSet<>();
+        synchronized (blockedExecutions) {
+            for (Execution execution : blockedExecutions) {
+                resources.addAll(Arrays.asList(execution.resources));
+            }
+        }
+        return resources;
+    }
+
+    /**
+     * Whether some blocked execution requires any of the resources.
+     */
+    /*package*/ static boolean isWaitingForAny(@Nonnull Collection<String> resources) {
+        Set<String> wanted = new TreeSet<>(GatingMetrics.RESOURCE_ID_COMPARATOR);
+        wanted.addAll(resources);
+        synchronized (blockedExecutions) {
+            for (Execution execution : blockedExecutions) {
+                for (String resource : execution.resources) {
+                    if (wanted.contains(resource)) return true;
+                }
             }
         }
+        return false;
+    }
+
+    /**
+     * Required resources of every blocked execution.
+     */
+    /*package*/ static @Nonnull List<List<String>> getBlockedRequirements() {
+        List<List<String>> requirements = new ArrayList<>();
+        synchronized (blockedExecutions) {
+            for (Execution execution : blockedExecutions) {
+                requirements.add(Arrays.asList(execution.resources));
+            }
+        }
+        return requirements;
+    }
+
+    /**
+     * Requirements of every blocked execution, by the display name of its build.
+     */
+    /*package*/ static @Nonnull List<Map.Entry<String, ResourceRequirementProperty>> getBlockedSteps() {
+        List<Map.Entry<String, ResourceRequirementProperty>> steps = new ArrayList<>();
+        synchronized (blockedExecutions) {
+            for (Execution execution : blockedExecutions) {
+                steps.add(new AbstractMap.SimpleImmutableEntry<>(execution.displayName, execution.getRequirement()));
+            }
+        }
+        return steps;
     }
 
     @Override
     public StepExecution start(StepContext context) {
-        return new Execution(context, this);
+        return new Execution(context, requiredResources.getResources(), requiredResources.getThresholds());
+    }
+
+    /**
+     * Recheck executions resumed after restart in a single pass.
+     *
+     * Pipelines resume one by one after Jenkins starts, so the pass is postponed to collect them. When there are no
+     * metrics by then, the pass is skipped as the first update rechecks all blocked executions anyway.
+     */
+    private static final class ResumePass implements Runnable {
+        private static final long DELAY = TimeUnit.SECONDS.toMillis(5);
+
+        // Executions resumed since the last pass was scheduled
+        @GuardedBy("ResumePass.class")
+        private static @CheckForNull List<Execution> resumed;
+
+        private static synchronized void add(@Nonnull Execution execution) {
+            if (resumed == null) {
+                resumed = new ArrayList<>();
+                Timer.get().schedule(new ResumePass(), DELAY, TimeUnit.MILLISECONDS);
+            }
+            resumed.add(execution);
+        }
+
+        @Override
+        public void run() {
+            List<Execution> executions;
+            synchronized (ResumePass.class) {
+                executions = resumed;
+                resumed = null;
+            }
+            if (executions == null || GatingMetrics.get().getMetrics().isEmpty()) return;
+
+            LOGGER.info("Rechecking " + executions.size() + " resumed requireResources steps");
+            recheck(executions);
+        }
     }
 
     private static final class Execution extends StepExecution {
         @Serial
         private static final long serialVersionUID = -8240169797779406466L;
 
-        private final GatingStep gatingStep;
+        /**
+         * Serialized by older versions, replaced by {@link #resources}.
+         */
+        @Deprecated
+        private GatingStep gatingStep;
+
+        // Keep the serialized form minimal, the program state of every paused pipeline contains it
+        private String[] resources;
+        private @CheckForNull String thresholds;
         private String displayName;
+        // Persisted to acquire the permits again when resumed with the body running
+        private volatile @CheckForNull String holder;
+        private volatile boolean running;
 
-        public Execution(StepContext context, GatingStep gatingStep) {
+        private transient volatile ResourceRequirementProperty requirement;
+        private transient volatile String reportedBlockage;
+
+        public Execution(StepContext context, List<String> resources, @CheckForNull String thresholds) {
             super(context);
-            this.gatingStep = gatingStep;
+            this.resources = resources.toArray(new String[0]);
+            this.thresholds = thresholds;
+        }
+
+        @Serial
+        private Object readResolve() {
+            if (resources == null && gatingStep != null) {
+                resources = gatingStep.requiredResources.getResources().toArray(new String[0]);
+                gatingStep = null;
+            }
+            return this;
+        }
+
+        private @Nonnull ResourceRequirementProperty getRequirement() {
+            ResourceRequirementProperty requirement = this.requirement;
+            if (requirement == null) {
+                requirement = new ResourceRequirementProperty(Arrays.asList(resources));
+                requirement.setThresholds(thresholds);
+                this.requirement = requirement;
+            }
+            return requirement;
+        }
+
+        private @Nonnull String getHolder() {
+            String holder = this.holder;
+            if (holder == null) {
+                holder = this.holder = "step:" + UUID.randomUUID();
+            }
+            return holder;
+        }
+
+        private @Nonnull GatingListener.Waiter getWaiter() throws IOException, InterruptedException {
+            return new GatingListener.Waiter(getHolder(), getContext().get(Run.class));
+        }
+
+        private @CheckForNull ResourceBlockage evaluate() {
+            GatingMetrics metrics = GatingMetrics.get();
+            ResourceBlockage blocked = getRequirement().evaluate(metrics);
+            return blocked != null
+                    ? blocked
+                    : getRequirement().admit(metrics, getHolder())
+            ;
         }
 
         @Override
         public boolean start() throws Exception {
             displayName = getContext().get(Run.class).getFullDisplayName();
-            ResourceBlockage blocked = gatingStep.requiredResources.evaluate(GatingMetrics.get());
+            ResourceBlockage blocked = evaluate();
             if (blocked == null) {
                 LOGGER.finer("Running " + displayName + " right away");
                 resumeToRunBody();
                 return false; // This does not count as synchronous completion
             }
             LOGGER.fine("Starting to block " + displayName);
+            warnAboutHeldExecutor();
             reportBlockage(blocked);
+            GatingListener.fireBlocked(getWaiter(), blocked);
+            MetricsPoller.get().demand(blocked.getResources());
+            Runnable hook = beforeRegistering;
+            if (hook != null) {
+                hook.run();
+            }
             synchronized (blockedExecutions) {
                 blockedExecutions.add(this);
             }
+            // Metrics updated since the evaluation have not seen it registered
+            recheck();
             return false;
         }
 
         @Override
         public void onResume() {
+            if (running) {
+                // Permits do not survive restart
+                ResourceAdmission.get().acquire(getHolder(), Arrays.asList(resources));
+                return;
+            }
+
             LOGGER.info("Resuming blocked requireResources step for " + displayName);
             synchronized (blockedExecutions) {
                 blockedExecutions.add(this);
             }
+            ResumePass.add(this);
         }
 
         @Override
-        public void stop(@Nonnull Throwable cause) {
+        public void stop(@Nonnull Throwable cause) throws Exception {
+            boolean blocked;
             synchronized (blockedExecutions) {
-                blockedExecutions.remove(this);
+                blocked = blockedExecutions.remove(this);
             }
+            if (blocked) {
+                GatingListener.fireCancelled(getWaiter());
+            }
+            ResourceAdmission.get().release(getHolder());
             getContext().onFailure(cause);
         }
 
         public void recheck() throws InterruptedException, IOException {
-            ResourceBlockage blocked = gatingStep.requiredResources.evaluate(GatingMetrics.get());
+            ResourceBlockage blocked = evaluate();
             if (blocked == null) {
-                LOGGER.info("Unblocking requireResources for " + displayName);
                 synchronized (blockedExecutions) {
-                    resumeToRunBody();
-                    blockedExecutions.remove(this);
+                    // Rechecked concurrently, or stopped
+                    if (!blockedExecutions.remove(this)) return;
                 }
+                LOGGER.info("Unblocking requireResources for " + displayName);
+                GatingListener.fireUnblocked(getWaiter());
+                resumeToRunBody();
             } else {
-                // TODO can take hours, better avoid updating it all the time
+                if (reportedBlockage == null) {
+                    // Resumed after restart, the journaled wait was closed
+                    GatingListener.fireBlocked(getWaiter(), blocked);
+                }
                 reportBlockage(blocked);
             }
         }
 
+        /**
+         * Waiting inside of a {@code node} block keeps the executor and the workspace occupied for the whole wait.
+         */
+        private void warnAboutHeldExecutor() throws IOException, InterruptedException {
+            Computer computer = getContext().get(Computer.class);
+            if (computer == null) return;
+
+            getContext().get(TaskListener.class).getLogger().println(String.format(
+                    "Warning: requireResources is waiting inside of a node block, holding an executor of %s. "
+                    + "Wrap the node block in it, or use it in stage options, to wait before the executor is allocated.",
+                    computer.getDisplayName()
+            ));
+        }
+
         private void resumeToRunBody() {
-            getContext().newBodyInvoker().start();
-            getContext().onSuccess(null);
+            running = true;
+            getContext().newBodyInvoker().withCallback(new ReleaseCapacity(getHolder())).start();
         }
 
         private void reportBlockage(ResourceBlockage blocked) throws IOException, InterruptedException {
-            getContext().get(TaskListener.class).getLogger().println(blocked.getShortDescription());
+            // Can take hours, do not repeat the same message on every update
+            String description = blocked.getShortDescription();
+            if (description.equals(reportedBlockage)) return;
+
+            reportedBlockage = description;
+            getContext().get(TaskListener.class).getLogger().println(description);
+        }
+    }
+
+    /**
+     * Complete the step once the body completes, releasing the capacity acquired for it.
+     */
+    private static final class ReleaseCapacity extends BodyExecutionCallback.TailCall {
+        @Serial
+        private static final long serialVersionUID = 3528497012470934165L;
+
+        private final @Nonnull String holder;
+
+        private ReleaseCapacity(@Nonnull String holder) {
+            this.holder = holder;
+        }
+
+        @Override
+        protected void finished(StepContext context) {
+            ResourceAdmission.get().release(holder);
         }
     }
 
@@ -0,0 +1,174 @@
+/*
+ * Copyright (c) Red Hat, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.jenkins.plugins.gating;
+
+import jenkins.model.Jenkins;
+import jenkins.util.Timer;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.GuardedBy;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Maintenance windows of all sources, with a single timer set to the next start or end of a window.
+ *
+ * Reads do not lock, they iterate over an immutable list of the windows not yet ended, ordered by their start.
+ */
+/*package*/ final class MaintenanceSchedule {
+    private static final Logger LOGGER = Logger.getLogger(MaintenanceSchedule.class.getName());
+    private static final Comparator<MaintenanceWindow> BY_START = Comparator.comparingLong(MaintenanceWindow::startMillis);
+
+    @GuardedBy("this")
+    private final @Nonnull Map<String, List<MaintenanceWindow>> windowsBySource = new HashMap<>();
+
+    private volatile @Nonnull List<MaintenanceWindow> windows = Collections.emptyList();
+
+    @GuardedBy("this")
+    private @CheckForNull ScheduledFuture<?> timer;
+    @GuardedBy("this")
+    private long timerAt = Long.MAX_VALUE;
+
+    /*package*/ void update(@Nonnull String sourceLabel, @Nonnull List<MaintenanceWindow> windows) {
+        boolean changed;
+        synchronized (this) {
+            List<MaintenanceWindow> previous = this.windows;
+            if (windows.isEmpty()) {
+                windowsBySource.remove(sourceLabel);
+            } else {
+                windowsBySource.put(sourceLabel, new ArrayList<>(windows));
+            }
+            rebuild();
+            // Providers report the same windows repeatedly
+            changed = !new HashSet<>(previous).equals(new HashSet<>(this.windows));
+        }
+
+        // Both ongoing and upcoming windows block, so any of them added or removed can change what can start
+        if (changed) {
+            recheck();
+        }
+    }
+
+    /**
+     * Windows not yet ended, ordered by their start.
+     */
+    /*package*/ @Nonnull List<MaintenanceWindow> getWindows() {
+        return windows;
+    }
+
+    /**
+     * Evaluate the requirements against the windows in progress, or starting before the work is estimated to finish.
+     *
+     * @param estimatedDuration Milliseconds the work is expected to take, not positive when unknown.
+     * @return null when satisfied, reasoning otherwise.
+     */
+    /*package*/ @CheckForNull ResourceBlockage evaluate(@Nonnull List<String> requirements, long estimatedDuration) {
+        List<MaintenanceWindow> windows = this.windows;
+        if (windows.isEmpty()) return null;
+
+        long now = System.currentTimeMillis();
+        long finish = now + Math.max(estimatedDuration, 0);
+        List<String> missing = null;
+        List<String> blocking = null;
+        for (MaintenanceWindow window : windows) {
+            if (window.startMillis() > finish) break; // Ordered by start
+            if (window.endMillis() <= now) continue; // Ended, not removed yet
+
+            for (String requirement : requirements) {
+                if (!window.covers(requirement)) continue;
+
+                if (missing == null) {
+                    missing = new ArrayList<>();
+                    blocking = new ArrayList<>();
+                }
+                missing.add(window.startMillis() <= now
+                        ? String.format("%s is in planned maintenance until %s", window.getResource(), Instant.ofEpochMilli(window.endMillis()))
+                        : String.format("%s has planned maintenance from %s, before the build is estimated to finish", window.getResource(), Instant.ofEpochMilli(window.startMillis()))
+                );
+                blocking.add(requirement);
+                break;
+            }
+        }
+
+        return missing == null ? null : new ResourceBlockage(missing, blocking);
+    }
+
+    @GuardedBy("this")
+    private void rebuild() {
+        long now = System.currentTimeMillis();
+        List<MaintenanceWindow> current = new ArrayList<>();
+        long next = Long.MAX_VALUE;
+        for (List<MaintenanceWindow> source : windowsBySource.values()) {
+            source.removeIf(window -> window.endMillis() <= now);
+            for (MaintenanceWindow window : source) {
+                current.add(window);
+                next = Math.min(next, window.startMillis() > now ? window.startMillis() : window.endMillis());
+            }
+        }
+        windowsBySource.values().removeIf(List::isEmpty);
+        current.sort(BY_START);
+        windows = Collections.unmodifiableList(current);
+
+        schedule(next, now);
+    }
+
+    /**
+     * Keep a single timer for the nearest transition.
+     */
+    @GuardedBy("this")
+    private void schedule(long next, long now) {
+        if (timer != null && !timer.isDone()) {
+            if (timerAt == next) return;
+
+            timer.cancel(false);
+        }
+        timer = null;
+        timerAt = next;
+        if (next == Long.MAX_VALUE) return;
+
+        timer = Timer.get().schedule(this::transition, next - now, TimeUnit.MILLISECONDS);
+    }
+
+    private void transition() {
+        synchronized (this) {
+            rebuild();
+        }
+        LOGGER.fine("Maintenance window started or ended");
+        recheck();
+    }
+
+    private static void recheck() {
+        // Blocked work is otherwise only reconsidered when the metrics change
+        Jenkins.get().getQueue().scheduleMaintenance();
+        GatingStep.metricsUpdated();
+    }
+}
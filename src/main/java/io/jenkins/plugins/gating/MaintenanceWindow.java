@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) Red Hat, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.jenkins.plugins.gating;
+
+import hudson.Util;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import java.time.Instant;
+import java.util.Date;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Planned outage of a resource, reported by its provider ahead of time.
+ *
+ * Builds requiring the resource are blocked for the duration of the window, and those estimated to still run when it
+ * starts are not started.
+ */
+public final class MaintenanceWindow {
+    private final @Nonnull String resource;
+    private final long start;
+    private final long end;
+    private final @CheckForNull String description;
+
+    /**
+     * Requirements the window applies to: the resource and the subtrees containing it.
+     */
+    private final @Nonnull List<String> covered;
+
+    public MaintenanceWindow(@Nonnull String resource, @Nonnull Date start, @Nonnull Date end, @CheckForNull String description) {
+        if (!end.after(start)) {
+            throw new IllegalArgumentException(String.format("Maintenance of %s ends (%s) before it starts (%s)", resource, end, start));
+        }
+
+        this.resource = resource;
+        this.start = start.getTime();
+        this.end = end.getTime();
+        this.description = Util.fixEmptyAndTrim(description);
+        this.covered = GatedJobIndex.requirementsCovering(resource);
+    }
+
+    public @Nonnull String getResource() {
+        return resource;
+    }
+
+    public @Nonnull Date getStart() {
+        return new Date(start);
+    }
+
+    public @Nonnull Date getEnd() {
+        return new Date(end);
+    }
+
+    public @CheckForNull String getDescription() {
+        return description;
+    }
+
+    /*package*/ long startMillis() {
+        return start;
+    }
+
+    /*package*/ long endMillis() {
+        return end;
+    }
+
+    /*package*/ boolean covers(@Nonnull String requirement) {
+        for (int i = 0; i < covered.size(); i++) {
+            if (GatingMetrics.RESOURCE_ID_COMPARATOR.compare(covered.get(i), requirement) == 0) return true;
+        }
+        return false;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        MaintenanceWindow that = (MaintenanceWindow) o;
+        return start == that.start && end == that.end && resource.equals(that.resource) && Objects.equals(description, that.description);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(resource, start, end, description);
+    }
+
+    @Override
+    public String toString() {
+        return resource + " from " + Instant.ofEpochMilli(start) + " until " + Instant.ofEpochMilli(end);
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright (c) Red Hat, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.jenkins.plugins.gating;
+
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import jenkins.util.SystemProperties;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.UnaryOperator;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Asynchronous ingestion stage in front of {@link GatingMetrics#update(MetricsSnapshot)} and
+ * {@link GatingMetrics#reportError(MetricsSnapshot.Error)}.
+ *
+ * Submissions are coalesced per source label, so only the latest snapshot (and the latest error reported after it) is
+ * applied. The single applier thread is the only one contending on the metrics lock, so provider threads return right away.
+ */
+/*package*/ final class MetricsIngestion {
+    private static final Logger LOGGER = Logger.getLogger(MetricsIngestion.class.getName());
+
+    /**
+     * Maximal number of source labels waiting to be applied.
+     *
+     * As submissions are coalesced per source label, this is only reached when the applier falls behind on many sources.
+     */
+    private static final int CAPACITY = SystemProperties.getInteger(MetricsIngestion.class.getName() + ".capacity", 1024);
+
+    /**
+     * What to do when the queue is full.
+     */
+    private static final OverflowPolicy OVERFLOW = overflowPolicy(MetricsIngestion.class.getName() + ".overflow");
+
+    /*package*/ enum OverflowPolicy {
+        /**
+         * Discard the submission and let the provider know by returning false.
+         */
+        DROP,
+
+        /**
+         * Apply the submission synchronously in the provider thread, slowing it down.
+         */
+        CALLER_RUNS
+    }
+
+    private final @Nonnull GatingMetrics metrics;
+    private final @Nonnull OverflowPolicy overflow;
+
+    /**
+     * Submissions waiting to be applied, per source label.
+     *
+     * Label is scheduled for application when its entry is created, later submissions only replace the entry.
+     */
+    private final @Nonnull ConcurrentHashMap<String, Pending> pending = new ConcurrentHashMap<>();
+
+    private final @Nonnull ThreadPoolExecutor applier;
+
+    /*package*/ MetricsIngestion(@Nonnull GatingMetrics metrics) {
+        this(metrics, CAPACITY, OVERFLOW);
+    }
+
+    /*package*/ MetricsIngestion(@Nonnull GatingMetrics metrics, int capacity, @Nonnull OverflowPolicy overflow) {
+        this.metrics = metrics;
+        this.overflow = overflow;
+        // No core threads so the applier does not linger when providers are quiet
+        this.applier = new ThreadPoolExecutor(
+                0, 1, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(capacity),
+                new NamingThreadFactory(new DaemonThreadFactory(), "GatingMetrics ingestion")
+        );
+    }
+
+    /*package*/ boolean submit(@Nonnull MetricsSnapshot snapshot) {
+        // Snapshot erases previous error, so there is no point in applying the pending one
+        return enqueue(snapshot.getSourceLabel(), previous -> new Pending(snapshot, null));
+    }
+
+    /*package*/ boolean submit(@Nonnull MetricsSnapshot.Error error) {
+        // Error does not erase previous data, so the pending snapshot needs to be applied still
+        return enqueue(error.getSourceLabel(), previous -> new Pending(previous == null ? null : previous.snapshot, error));
+    }
+
+    private static @Nonnull OverflowPolicy overflowPolicy(@Nonnull String property) {
+        String value = SystemProperties.getString(property, OverflowPolicy.DROP.name());
+        try {
+            return OverflowPolicy.valueOf(value.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException ex) {
+            LOGGER.warning("Invalid value of " + property + ": " + value + ". Using " + OverflowPolicy.DROP);
+            return OverflowPolicy.DROP;
+        }
+    }
+
+    private boolean enqueue(@Nonnull String sourceLabel, @Nonnull UnaryOperator<Pending> merge) {
+        boolean[] coalesced = { false };
+        Pending own = pending.compute(sourceLabel, (label, previous) -> {
+            coalesced[0] = previous != null;
+            return merge.apply(previous);
+        });
+        if (coalesced[0]) return true; // Already scheduled
+
+        try {
+            applier.execute(() -> apply(sourceLabel));
+            return true;
+        } catch (RejectedExecutionException ex) {
+            switch (overflow) {
+                case CALLER_RUNS:
+                    apply(sourceLabel);
+                    return true;
+                case DROP:
+                default:
+                    if (!pending.remove(sourceLabel, own)) {
+                        // Submissions coalesced in the meantime were accepted already, do not lose them
+                        apply(sourceLabel);
+                        return true;
+                    }
+                    LOGGER.warning("Metrics ingestion queue is full. Dropping update for source " + sourceLabel);
+                    return false;
+            }
+        }
+    }
+
+    private void apply(@Nonnull String sourceLabel) {
+        Pending p = pending.remove(sourceLabel);
+        if (p == null) return; // Applied by the caller in the meantime
+
+        try {
+            if (p.snapshot != null) {
+                metrics.update(p.snapshot);
+            }
+            if (p.error != null) {
+                metrics.reportError(p.error);
+            }
+        } catch (RuntimeException ex) {
+            LOGGER.log(Level.WARNING, "Failed applying metrics for source " + sourceLabel, ex);
+        }
+    }
+
+    private static final class Pending {
+        private final @CheckForNull MetricsSnapshot snapshot;
+        private final @CheckForNull MetricsSnapshot.Error error;
+
+        private Pending(@CheckForNull MetricsSnapshot snapshot, @CheckForNull MetricsSnapshot.Error error) {
+            this.snapshot = snapshot;
+            this.error = error;
+        }
+    }
+}
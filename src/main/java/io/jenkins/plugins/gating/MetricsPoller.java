@@ -0,0 +1,393 @@
+/*
+ * Copyright (c) Red Hat, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.jenkins.plugins.gating;
+
+import hudson.Extension;
+import hudson.ExtensionList;
+import hudson.init.Terminator;
+import hudson.model.PeriodicWork;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import jenkins.model.Jenkins;
+import jenkins.util.Timer;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.GuardedBy;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Poll {@link PollableMetricsProvider}s and report the results to {@link GatingMetrics}.
+ *
+ * Every source label is polled independently, so a slow source does not delay the others. Polls run on virtual
+ * threads when available, so there is no limit on how many of them can wait for a response concurrently. The fetch runs
+ * on the thread of the poll, and it is interrupted by a timer once it exceeds its timeout.
+ *
+ * Sources with resources builds are waiting for are polled at {@link PollableMetricsProvider#getPollInterval(String)},
+ * the others back off up to {@link PollableMetricsProvider#getIdlePollInterval(String)}. Source is polled right away
+ * once a build starts waiting for it after a period of inactivity.
+ *
+ * The periodic work only reconciles the polled labels with the ones the providers declare.
+ */
+@Extension
+@Restricted(NoExternalUse.class)
+public final class MetricsPoller extends PeriodicWork {
+    private static final Logger LOGGER = Logger.getLogger(MetricsPoller.class.getName());
+
+    private static final long RETRY_DELAY = TimeUnit.SECONDS.toMillis(1);
+
+    /**
+     * For how long is the resource considered waited for after a build was last blocked by it.
+     *
+     * Blocked queue items are reevaluated on every queue maintenance, refreshing the demand well within this period.
+     */
+    private static final long DEMAND_TTL = TimeUnit.MINUTES.toMillis(1);
+
+    // Per instance, as it is shut down with Jenkins
+    private final @Nonnull ExecutorService fetchers = createExecutor();
+
+    private final @Nonnull Map<String, Source> sources = new ConcurrentHashMap<>();
+
+    /*package*/ static @Nonnull MetricsPoller get() {
+        return ExtensionList.lookupSingleton(MetricsPoller.class);
+    }
+
+    @Override
+    public long getRecurrencePeriod() {
+        return MIN;
+    }
+
+    @Override
+    public long getInitialDelay() {
+        return 0;
+    }
+
+    @Override
+    protected void doRun() {
+        reconcile();
+    }
+
+    /**
+     * Start polling labels newly declared by providers and stop polling those no longer declared.
+     */
+    /*package*/ synchronized void reconcile() {
+        Map<String, PollableMetricsProvider> declared = new HashMap<>();
+        for (PollableMetricsProvider provider : ExtensionList.lookup(PollableMetricsProvider.class)) {
+            for (String label : provider.getLabels()) {
+                // Conflicts are reported by GatingMetrics, poll the first provider only
+                declared.putIfAbsent(label, provider);
+            }
+        }
+
+        sources.values().removeIf(source -> {
+            if (declared.get(source.label) == source.provider) return false;
+
+            source.cancel();
+            return true;
+        });
+
+        declared.forEach((label, provider) -> sources.computeIfAbsent(label, l -> {
+            Source source = new Source(provider, label, fetchers);
+            source.schedule(0);
+            return source;
+        }));
+    }
+
+    /**
+     * Note builds are blocked waiting for the resources.
+     */
+    /*package*/ void demand(@Nonnull Collection<String> resources) {
+        for (String resource : resources) {
+            int delim = resource.indexOf(GatingMetrics.DELIM);
+            if (delim < 1) continue;
+
+            Source source = sources.get(resource.substring(0, delim));
+            if (source != null) {
+                source.demand(resource);
+            }
+        }
+    }
+
+    /*package*/ synchronized void cancelAll() {
+        sources.values().forEach(Source::cancel);
+        sources.clear();
+    }
+
+    @Terminator
+    public static void shutdown() {
+        for (MetricsPoller poller : ExtensionList.lookup(MetricsPoller.class)) {
+            poller.cancelAll();
+            // Interrupt the fetches in progress
+            poller.fetchers.shutdownNow();
+        }
+    }
+
+    private static @Nonnull ExecutorService createExecutor() {
+        try {
+            // Available since Java 21
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException ex) {
+            LOGGER.fine("Virtual threads not available, fetching metrics using platform threads");
+            return Executors.newCachedThreadPool(new NamingThreadFactory(new DaemonThreadFactory(), "MetricsPoller fetch"));
+        }
+    }
+
+    private static long jitter(@Nonnull Duration interval) {
+        long millis = interval.toMillis();
+        // Spread the polls of sources configured with the same interval
+        long spread = millis / 10;
+        return spread == 0 ? millis : millis - spread + ThreadLocalRandom.current().nextLong(2 * spread);
+    }
+
+    private static final class Source {
+        private final @Nonnull PollableMetricsProvider provider;
+        private final @Nonnull String label;
+        private final @Nonnull ExecutorService fetchers;
+
+        /**
+         * Resources blocked queue items are waiting for, with the time they were last reported.
+         */
+        private final @Nonnull Map<String, Long> demanded = new ConcurrentHashMap<>();
+
+        // Only accessed from the poll in progress, there is at most one at a time
+        private int failedAttempts = 0;
+        private int idlePolls = 0;
+        private @Nonnull Set<String> notifiedDemand = Collections.emptySet();
+
+        @GuardedBy("this")
+        private boolean cancelled = false;
+        @GuardedBy("this")
+        private boolean idle = false;
+        @GuardedBy("this")
+        private @CheckForNull Future<?> next;
+
+        private Source(@Nonnull PollableMetricsProvider provider, @Nonnull String label, @Nonnull ExecutorService fetchers) {
+            this.provider = provider;
+            this.label = label;
+            this.fetchers = fetchers;
+        }
+
+        private synchronized void schedule(long delay) {
+            if (cancelled) return;
+
+            next = Timer.get().schedule(() -> {
+                try {
+                    fetchers.execute(this::poll);
+                } catch (RejectedExecutionException ex) {
+                    LOGGER.log(Level.FINE, "Not polling " + label + ", shutting down", ex);
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+
+        private synchronized void cancel() {
+            cancelled = true;
+            if (next != null) {
+                next.cancel(false);
+            }
+        }
+
+        private synchronized boolean isCancelled() {
+            return cancelled || Jenkins.getInstanceOrNull() == null;
+        }
+
+        private void demand(@Nonnull String resource) {
+            demanded.put(resource, System.currentTimeMillis());
+
+            synchronized (this) {
+                if (!idle) return;
+
+                idle = false;
+                // Poll right away unless the poll is already in progress
+                if (next != null && next.cancel(false)) {
+                    LOGGER.fine("Polling idle source " + label + " on demand");
+                    schedule(0);
+                }
+            }
+        }
+
+        private void poll() {
+            if (isCancelled()) return;
+
+            Duration timeout = provider.getFetchTimeout(label);
+            Throwable failure;
+            try {
+                MetricsSnapshot snapshot = fetch(timeout);
+                if (!label.equals(snapshot.getSourceLabel()) || snapshot.getProvider() != provider) {
+                    throw new IllegalStateException(
+                            "Provider returned snapshot of source " + snapshot.getSourceLabel() + " when polled for " + label
+                    );
+                }
+
+                failedAttempts = 0;
+                GatingMetrics.get().submit(snapshot);
+                scheduleNextPoll();
+                return;
+            } catch (Exception ex) {
+                failure = ex;
+            }
+
+            if (isCancelled()) return;
+
+            if (failedAttempts < provider.getMaxRetries(label)) {
+                long backoff = Math.min(RETRY_DELAY << Math.min(failedAttempts, 30), provider.getPollInterval(label).toMillis());
+                failedAttempts++;
+                LOGGER.log(Level.FINE, "Fetching metrics for " + label + " failed, retrying in " + backoff + "ms", failure);
+                schedule(backoff);
+                return;
+            }
+
+            failedAttempts = 0;
+            try {
+                GatingMetrics.get().submitError(new MetricsSnapshot.Error(provider, label, "Failed fetching metrics", failure, false));
+            } catch (IllegalArgumentException ex) {
+                // Keep polling, the next fetch can succeed
+                ex.addSuppressed(failure);
+                LOGGER.log(Level.WARNING, "Failed reporting fetch failure of " + label, ex);
+            }
+            scheduleNextPoll();
+        }
+
+        /**
+         * Fetch on the current thread, interrupting it once the timeout elapses.
+         *
+         * @throws TimeoutException When interrupted by the timeout.
+         * @throws InterruptedException When interrupted otherwise.
+         */
+        private @Nonnull MetricsSnapshot fetch(@Nonnull Duration timeout) throws Exception {
+            FetchTimeout deadline = new FetchTimeout(Thread.currentThread());
+            Future<?> timer = Timer.get().schedule(deadline, timeout.toMillis(), TimeUnit.MILLISECONDS);
+
+            Exception failure = null;
+            MetricsSnapshot snapshot = null;
+            try {
+                snapshot = provider.fetch(label);
+            } catch (Exception ex) {
+                failure = ex;
+            } finally {
+                timer.cancel(false);
+            }
+
+            if (deadline.finish()) {
+                // The interrupt was meant for the fetch only
+                Thread.interrupted();
+                TimeoutException timedOut = new TimeoutException("Fetch timed out after " + timeout);
+                if (failure != null) {
+                    timedOut.addSuppressed(failure);
+                }
+                throw timedOut;
+            }
+            if (failure != null) throw failure;
+            return snapshot;
+        }
+
+        /**
+         * Schedule the next poll based on the demand for the resources.
+         */
+        private void scheduleNextPoll() {
+            long now = System.currentTimeMillis();
+            demanded.values().removeIf(reported -> now - reported > DEMAND_TTL);
+
+            Set<String> waitedFor = new TreeSet<>(GatingMetrics.RESOURCE_ID_COMPARATOR);
+            waitedFor.addAll(demanded.keySet());
+            for (String resource : GatingStep.getWaitedForResources()) {
+                if (resource.startsWith(label + GatingMetrics.DELIM)) {
+                    waitedFor.add(resource);
+                }
+            }
+
+            if (!waitedFor.equals(notifiedDemand)) {
+                notifiedDemand = Collections.unmodifiableSet(waitedFor);
+                try {
+                    provider.demandChanged(label, notifiedDemand);
+                } catch (RuntimeException ex) {
+                    LOGGER.log(Level.WARNING, "Provider failed to process demand change of " + label, ex);
+                }
+            }
+
+            Duration interval = provider.getPollInterval(label);
+            boolean isIdle = waitedFor.isEmpty();
+            long delay;
+            if (isIdle) {
+                long backoff = interval.toMillis() << Math.min(idlePolls++, 30);
+                delay = jitter(Duration.ofMillis(Math.min(backoff, provider.getIdlePollInterval(label).toMillis())));
+            } else {
+                idlePolls = 0;
+                delay = jitter(interval);
+            }
+
+            // Together, so demand() either sees the source busy, or the poll it can cancel and reschedule
+            synchronized (this) {
+                idle = isIdle;
+                schedule(delay);
+            }
+        }
+    }
+
+    /**
+     * Interrupt the fetch once it times out, but never the thread after the fetch has finished.
+     */
+    private static final class FetchTimeout implements Runnable {
+        private final @Nonnull Thread thread;
+        @GuardedBy("this")
+        private boolean fetching = true;
+        @GuardedBy("this")
+        private boolean timedOut = false;
+
+        private FetchTimeout(@Nonnull Thread thread) {
+            this.thread = thread;
+        }
+
+        @Override
+        public synchronized void run() {
+            if (!fetching) return;
+
+            timedOut = true;
+            thread.interrupt();
+        }
+
+        /**
+         * @return true if the fetch was interrupted by the timeout.
+         */
+        private synchronized boolean finish() {
+            fetching = false;
+            return timedOut;
+        }
+    }
+}
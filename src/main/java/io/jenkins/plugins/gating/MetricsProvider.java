@@ -37,6 +37,9 @@ public interface MetricsProvider extends ExtensionPoint {
      * Source label names this provider is configured to service.
      *
      * Individual providers must provide labels that are unique within Jenkins. Labels must ne non-empty alphanumeric strings.
+     *
+     * The labels are cached, and read again when a provider is added or removed, or when the provider or any other
+     * {@link jenkins.model.GlobalConfiguration} is saved. Providers changing their labels otherwise are to save themselves.
      */
     @Nonnull Set<String> getLabels();
 }
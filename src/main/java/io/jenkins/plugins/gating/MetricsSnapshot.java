@@ -21,41 +21,216 @@
  */
 package io.jenkins.plugins.gating;
 
+import hudson.Functions;
 import hudson.Util;
 import hudson.util.FormValidation;
 
 import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
 import java.io.Serial;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Objects;
+import java.util.Set;
 import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.function.IntFunction;
 
 import static hudson.util.FormValidation.Kind.OK;
 
 /**
  * Immutable snapshot of resources reported by a single provider.
+ *
+ * Resources are stored in columns indexed by the position of the resource name in sorted order, so large snapshots do
+ * not retain an object per resource. {@link Resource} instances are created on access.
  */
 public final class MetricsSnapshot {
-    private final long created = System.currentTimeMillis();
+    private static final ResourceStatus.Category[] CATEGORIES = ResourceStatus.Category.values();
+    // Approximate sizes of object headers and references, for the estimate of retained memory
+    private static final int REFERENCE = 8;
+    private static final int ARRAY = 16;
+    private static final int STRING = 24 + ARRAY;
+    private static final Comparator<Resource> RESOURCE_NAME_COMPARATOR
+            = Comparator.comparing(Resource::getName, GatingMetrics.RESOURCE_ID_COMPARATOR);
+
+    private final long created;
 
-    private final @Nonnull Map<String, Resource> statuses;
     private final @Nonnull MetricsProvider provider;
     private final @Nonnull String sourceLabel;
 
+    /**
+     * Resource names sorted by {@link GatingMetrics#RESOURCE_ID_COMPARATOR}.
+     */
+    private final @Nonnull String[] names;
+
+    /**
+     * {@link ResourceStatus.Category} ordinals of resources.
+     */
+    private final @Nonnull byte[] categories;
+
+    /**
+     * Statuses of resources, null when all of them are plain {@link ResourceStatus.Category}.
+     */
+    private final @CheckForNull ResourceStatus[] statuses;
+
+    /**
+     * Descriptions of resources, null when none of them have one.
+     */
+    private final @CheckForNull String[] descriptions;
+
+    /**
+     * Capacities of resources, null when none of them is limited.
+     */
+    private final @CheckForNull int[] capacities;
+
+    /**
+     * Sorted names of numeric metrics reported for resources, null when there are none.
+     */
+    private final @CheckForNull String[] metricNames;
+
+    /**
+     * Values of metrics, indexed by metric and resource. {@link Double#NaN} when not reported for the resource.
+     */
+    private final @CheckForNull double[][] metricValues;
+
+    /**
+     * Approximate number of bytes retained by the columns.
+     */
+    private final long estimatedSize;
+
+    private final @Nonnull Map<String, Resource> view = new StatusesView();
+
     public MetricsSnapshot(
             @Nonnull MetricsProvider provider,
             @Nonnull String sourceLabel,
             @Nonnull Map<String, Resource> statuses
     ) {
-        FormValidation validation = GatingMetrics.validateLabel(sourceLabel);
-        if (validation.kind != OK) throw new IllegalArgumentException(validation);
+        this(provider, sourceLabel, sortedResources(sourceLabel, statuses));
+    }
 
+    private MetricsSnapshot(@Nonnull MetricsProvider provider, @Nonnull String sourceLabel, @Nonnull Resource[] sorted) {
+        this(provider, sourceLabel, sorted, sorted.length);
+    }
+
+    /**
+     * @param sorted Resources sorted by name, with no two names differing in case only.
+     * @param size Number of resources in the array, the rest is ignored.
+     */
+    private MetricsSnapshot(@Nonnull MetricsProvider provider, @Nonnull String sourceLabel, @Nonnull Resource[] sorted, int size) {
+        this.created = System.currentTimeMillis();
         this.provider = provider;
         this.sourceLabel = sourceLabel;
 
+        this.names = new String[size];
+        this.categories = new byte[size];
+        ResourceStatus[] statusColumn = null;
+        String[] descriptionColumn = null;
+        int[] capacityColumn = null;
+        for (int i = 0; i < size; i++) {
+            Resource resource = sorted[i];
+            names[i] = resource.name;
+            categories[i] = (byte) resource.status.getCategory().ordinal();
+            if (statusColumn == null && !(resource.status instanceof ResourceStatus.Category)) {
+                // Plain categories up until now
+                statusColumn = new ResourceStatus[size];
+                for (int j = 0; j < i; j++) {
+                    statusColumn[j] = sorted[j].status;
+                }
+            }
+            if (statusColumn != null) {
+                statusColumn[i] = resource.status;
+            }
+            if (resource.description != null && descriptionColumn == null) {
+                descriptionColumn = new String[size];
+            }
+            if (descriptionColumn != null) {
+                descriptionColumn[i] = resource.description;
+            }
+            if (resource.capacity != Resource.UNLIMITED && capacityColumn == null) {
+                capacityColumn = new int[size];
+                Arrays.fill(capacityColumn, 0, i, Resource.UNLIMITED);
+            }
+            if (capacityColumn != null) {
+                capacityColumn[i] = resource.capacity;
+            }
+        }
+        this.statuses = statusColumn;
+        this.descriptions = descriptionColumn;
+        this.capacities = capacityColumn;
+
+        TreeSet<String> metricNameSet = new TreeSet<>();
+        for (int i = 0; i < size; i++) {
+            metricNameSet.addAll(sorted[i].metrics.keySet());
+        }
+        if (metricNameSet.isEmpty()) {
+            this.metricNames = null;
+            this.metricValues = null;
+        } else {
+            this.metricNames = metricNameSet.toArray(new String[0]);
+            this.metricValues = new double[metricNames.length][];
+            for (int m = 0; m < metricNames.length; m++) {
+                double[] row = new double[size];
+                for (int i = 0; i < size; i++) {
+                    Double value = sorted[i].metrics.get(metricNames[m]);
+                    row[i] = value == null ? Double.NaN : value;
+                }
+                metricValues[m] = row;
+            }
+        }
+        this.estimatedSize = estimateSize();
+    }
+
+    private long estimateSize() {
+        long size = ARRAY + (long) (REFERENCE + 1) * names.length; // Names and categories
+        for (String name : names) {
+            size += sizeOf(name);
+        }
+        if (statuses != null) {
+            size += ARRAY + (long) REFERENCE * statuses.length; // Statuses are typically shared constants
+        }
+        if (descriptions != null) {
+            size += ARRAY + (long) REFERENCE * descriptions.length;
+            for (String description : descriptions) {
+                size += sizeOf(description);
+            }
+        }
+        if (capacities != null) {
+            size += ARRAY + (long) Integer.BYTES * capacities.length;
+        }
+        if (metricNames != null) {
+            for (int m = 0; m < metricNames.length; m++) {
+                size += REFERENCE + sizeOf(metricNames[m]) + ARRAY + (long) Double.BYTES * metricValues[m].length;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Estimate of what the resource adds to the columns of {@link #estimateSize()}.
+     */
+    private static long estimateSize(@Nonnull Resource resource) {
+        return REFERENCE + 1 + sizeOf(resource.name)
+                + REFERENCE + REFERENCE + sizeOf(resource.description)
+                + Integer.BYTES
+                + (long) Double.BYTES * resource.metrics.size()
+        ;
+    }
+
+    private static long sizeOf(@CheckForNull String string) {
+        // Two bytes per character, overestimating Latin-1 strings
+        return string == null ? 0 : STRING + 2L * string.length();
+    }
+
+    private static @Nonnull Resource[] sortedResources(@Nonnull String sourceLabel, @Nonnull Map<String, Resource> statuses) {
+        validateLabel(sourceLabel);
+
         if (statuses.containsKey(null) || statuses.containsKey("")) {
             throw new IllegalArgumentException("Status map cannot contain empty resources");
         }
@@ -65,11 +240,7 @@ public final class MetricsSnapshot {
         }
 
         statuses.forEach((k ,v)-> {
-            if (!k.startsWith(sourceLabel + GatingMetrics.DELIM)) {
-                throw new IllegalArgumentException(String.format(
-                        "Resource name (%s) not prefixed with source label (%s%s)", k, sourceLabel, GatingMetrics.DELIM
-                ));
-            }
+            validatePrefix(sourceLabel, k);
             if (!Objects.equals(k, v.name)) {
                 throw new IllegalArgumentException(String.format(
                         "Resource name (%s) have incorrect key (%s)", v.name, k
@@ -77,17 +248,171 @@ public final class MetricsSnapshot {
             }
         });
 
-        TreeMap<String, Resource> out = new TreeMap<>(GatingMetrics.RESOURCE_ID_COMPARATOR);
-        out.putAll(statuses);
-        this.statuses = Collections.unmodifiableMap(out);
+        Resource[] sorted = statuses.values().toArray(new Resource[0]);
+        Arrays.sort(sorted, RESOURCE_NAME_COMPARATOR);
+        int size = collapse(sorted, sorted.length);
+        return size == sorted.length ? sorted : Arrays.copyOf(sorted, size);
+    }
+
+    private static void validateLabel(@Nonnull String sourceLabel) {
+        FormValidation validation = GatingMetrics.validateLabel(sourceLabel);
+        if (validation.kind != OK) throw new IllegalArgumentException(validation);
+    }
+
+    private static void validatePrefix(@Nonnull String sourceLabel, @Nonnull String name) {
+        if (!name.startsWith(sourceLabel + GatingMetrics.DELIM)) {
+            throw new IllegalArgumentException(String.format(
+                    "Resource name (%s) not prefixed with source label (%s%s)", name, sourceLabel, GatingMetrics.DELIM
+            ));
+        }
+    }
+
+    /**
+     * Names differing in case only identify the same resource, the last one wins.
+     *
+     * @param sorted Resources stably sorted by name, collapsed in place.
+     * @return Number of resources left.
+     */
+    private static int collapse(@Nonnull Resource[] sorted, int length) {
+        int size = 0;
+        for (int i = 0; i < length; i++) {
+            if (size > 0 && RESOURCE_NAME_COMPARATOR.compare(sorted[size - 1], sorted[i]) == 0) {
+                sorted[size - 1] = sorted[i];
+            } else {
+                sorted[size++] = sorted[i];
+            }
+        }
+        return size;
+    }
+
+    private MetricsSnapshot(
+            @Nonnull MetricsSnapshot snapshot,
+            @Nonnull String[] names,
+            @Nonnull byte[] categories,
+            @CheckForNull ResourceStatus[] statuses,
+            @CheckForNull String[] descriptions,
+            @CheckForNull int[] capacities,
+            @CheckForNull String[] metricNames,
+            @CheckForNull double[][] metricValues
+    ) {
+        this.created = snapshot.created;
+        this.provider = snapshot.provider;
+        this.sourceLabel = snapshot.sourceLabel;
+        this.names = names;
+        this.categories = categories;
+        this.statuses = statuses;
+        this.descriptions = descriptions;
+        this.capacities = capacities;
+        this.metricNames = metricNames;
+        this.metricValues = metricValues;
+        this.estimatedSize = snapshot.estimatedSize; // Equivalent, only sharing more
+    }
+
+    /**
+     * Create equivalent snapshot that reuses the objects of the previous snapshot where equal.
+     *
+     * Consecutive snapshots of a source tend to differ in a few resources, if any. Reusing the names, descriptions and
+     * statuses, or whole columns of the previous snapshot, prevents retaining duplicates and permits to detect changes
+     * with {@link #hasSameResources(MetricsSnapshot)}.
+     *
+     * @param previous Snapshot of the same source that is to be replaced by this one.
+     */
+    /*package*/ @Nonnull MetricsSnapshot deduplicate(@CheckForNull MetricsSnapshot previous) {
+        if (previous == null || previous == this) return this;
+
+        int size = names.length;
+        String[] dedupNames = new String[size];
+        ResourceStatus[] dedupStatuses = statuses == null ? null : new ResourceStatus[size];
+        String[] dedupDescriptions = descriptions == null ? null : new String[size];
+
+        int p = 0;
+        for (int i = 0; i < size; i++) {
+            String name = names[i];
+            while (p < previous.names.length && GatingMetrics.RESOURCE_ID_COMPARATOR.compare(previous.names[p], name) < 0) {
+                p++;
+            }
+            boolean found = p < previous.names.length && previous.names[p].equals(name);
+
+            dedupNames[i] = found ? previous.names[p] : name;
+            if (dedupStatuses != null) {
+                ResourceStatus status = statuses[i];
+                ResourceStatus previousStatus = found ? previous.statusAt(p) : null;
+                dedupStatuses[i] = status.equals(previousStatus) ? previousStatus : status;
+            }
+            if (dedupDescriptions != null) {
+                String description = descriptions[i];
+                String previousDescription = found ? previous.descriptionAt(p) : null;
+                dedupDescriptions[i] = Objects.equals(description, previousDescription) ? previousDescription : description;
+            }
+        }
+
+        return new MetricsSnapshot(
+                this,
+                Arrays.equals(dedupNames, previous.names) ? previous.names : dedupNames,
+                Arrays.equals(categories, previous.categories) ? previous.categories : categories,
+                dedupStatuses == null || !Arrays.equals(dedupStatuses, previous.statuses) ? dedupStatuses : previous.statuses,
+                dedupDescriptions == null || !Arrays.equals(dedupDescriptions, previous.descriptions) ? dedupDescriptions : previous.descriptions,
+                capacities == null || !Arrays.equals(capacities, previous.capacities) ? capacities : previous.capacities,
+                metricNames == null || !Arrays.equals(metricNames, previous.metricNames) ? metricNames : previous.metricNames,
+                deduplicateMetricValues(previous)
+        );
+    }
+
+    private @CheckForNull double[][] deduplicateMetricValues(@Nonnull MetricsSnapshot previous) {
+        if (metricValues == null || previous.metricValues == null) return metricValues;
+        // Rows are only comparable with the same resources and metrics
+        if (!Arrays.equals(names, previous.names) || !Arrays.equals(metricNames, previous.metricNames)) return metricValues;
+
+        double[][] dedup = new double[metricValues.length][];
+        boolean same = true;
+        for (int m = 0; m < metricValues.length; m++) {
+            if (Arrays.equals(metricValues[m], previous.metricValues[m])) {
+                dedup[m] = previous.metricValues[m];
+            } else {
+                dedup[m] = metricValues[m];
+                same = false;
+            }
+        }
+        return same ? previous.metricValues : dedup;
+    }
+
+    /**
+     * Identity based check whether the snapshots share all resources, as a result of {@link #deduplicate(MetricsSnapshot)}.
+     */
+    /*package*/ boolean hasSameResources(@Nonnull MetricsSnapshot other) {
+        return names == other.names
+                && categories == other.categories
+                && statuses == other.statuses
+                && descriptions == other.descriptions
+                && capacities == other.capacities
+                && metricNames == other.metricNames
+                && metricValues == other.metricValues
+        ;
+    }
+
+    /**
+     * Identity based check whether the snapshots share the names and categories of resources.
+     */
+    /*package*/ boolean hasSameCategories(@Nonnull MetricsSnapshot other) {
+        return names == other.names && categories == other.categories;
+    }
+
+    /**
+     * Approximate number of bytes of heap the snapshot retains.
+     */
+    public long getEstimatedSize() {
+        return estimatedSize;
     }
 
     public @Nonnull Date getCreated() {
         return new Date(created);
     }
 
+    /**
+     * Resources by name. The map is an immutable view sorted by {@link GatingMetrics#RESOURCE_ID_COMPARATOR}.
+     */
     public @Nonnull Map<String, Resource> getStatuses() {
-        return statuses;
+        return view;
     }
 
     public @Nonnull MetricsProvider getProvider() {
@@ -98,21 +423,283 @@ public final class MetricsSnapshot {
         return sourceLabel;
     }
 
+    /*package*/ int size() {
+        return names.length;
+    }
+
+    /**
+     * Position of the resource, negative if not present.
+     */
+    /*package*/ int indexOf(@Nonnull String name) {
+        return Arrays.binarySearch(names, name, GatingMetrics.RESOURCE_ID_COMPARATOR);
+    }
+
+    /*package*/ @Nonnull String nameAt(int index) {
+        return names[index];
+    }
+
+    /*package*/ @Nonnull ResourceStatus.Category categoryAt(int index) {
+        return CATEGORIES[categories[index]];
+    }
+
+    /*package*/ @Nonnull ResourceStatus statusAt(int index) {
+        return statuses == null ? categoryAt(index) : statuses[index];
+    }
+
+    /*package*/ @CheckForNull String descriptionAt(int index) {
+        return descriptions == null ? null : descriptions[index];
+    }
+
+    /*package*/ int capacityAt(int index) {
+        return capacities == null ? Resource.UNLIMITED : capacities[index];
+    }
+
+    /**
+     * Value of the metric reported for the resource, {@link Double#NaN} when not reported.
+     */
+    /*package*/ double metricAt(int index, @Nonnull String metric) {
+        if (metricNames == null) return Double.NaN;
+
+        int m = Arrays.binarySearch(metricNames, metric);
+        return m < 0 ? Double.NaN : metricValues[m][index];
+    }
+
+    /*package*/ @Nonnull Resource resourceAt(int index) {
+        Map<String, Double> metrics = Collections.emptyMap();
+        if (metricNames != null) {
+            metrics = new TreeMap<>();
+            for (int m = 0; m < metricNames.length; m++) {
+                double value = metricValues[m][index];
+                if (!Double.isNaN(value)) {
+                    metrics.put(metricNames[m], value);
+                }
+            }
+        }
+        return new Resource(names[index], statusAt(index), descriptionAt(index), capacityAt(index), metrics);
+    }
+
+    private final class StatusesView extends AbstractMap<String, Resource> {
+
+        @Override
+        public int size() {
+            return names.length;
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return key instanceof String name && indexOf(name) >= 0;
+        }
+
+        @Override
+        public @CheckForNull Resource get(Object key) {
+            if (!(key instanceof String name)) return null;
+
+            int index = indexOf(name);
+            return index < 0 ? null : resourceAt(index);
+        }
+
+        @Override
+        public @Nonnull Set<String> keySet() {
+            return new AbstractSet<>() {
+                @Override public int size() {
+                    return names.length;
+                }
+
+                @Override public boolean contains(Object o) {
+                    return containsKey(o);
+                }
+
+                @Override public @Nonnull Iterator<String> iterator() {
+                    return new ColumnIterator<>(i -> names[i]);
+                }
+            };
+        }
+
+        @Override
+        public @Nonnull Set<Entry<String, Resource>> entrySet() {
+            return new AbstractSet<>() {
+                @Override public int size() {
+                    return names.length;
+                }
+
+                @Override public @Nonnull Iterator<Entry<String, Resource>> iterator() {
+                    return new ColumnIterator<>(i -> new SimpleImmutableEntry<>(names[i], resourceAt(i)));
+                }
+            };
+        }
+    }
+
+    private final class ColumnIterator<T> implements Iterator<T> {
+        private final @Nonnull IntFunction<T> column;
+        private int next = 0;
+
+        private ColumnIterator(@Nonnull IntFunction<T> column) {
+            this.column = column;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next < names.length;
+        }
+
+        @Override
+        public T next() {
+            if (!hasNext()) throw new NoSuchElementException();
+
+            return column.apply(next++);
+        }
+    }
+
+    /**
+     * Build a snapshot from resources added one at a time, such as from a stream.
+     */
+    public static @Nonnull Builder builder(@Nonnull MetricsProvider provider, @Nonnull String sourceLabel) {
+        return new Builder(provider, sourceLabel, 16);
+    }
+
+    /**
+     * @param expectedSize Number of resources expected, permits to allocate the buffer once.
+     */
+    public static @Nonnull Builder builder(@Nonnull MetricsProvider provider, @Nonnull String sourceLabel, int expectedSize) {
+        return new Builder(provider, sourceLabel, expectedSize);
+    }
+
+    /**
+     * Collect resources validating them as they are added.
+     *
+     * Resources added in order of their names are not sorted again, so providers reading sorted data build the snapshot
+     * in a single pass. Of resources with names differing in case only, the last one added wins.
+     */
+    public static final class Builder {
+        private final @Nonnull MetricsProvider provider;
+        private final @Nonnull String sourceLabel;
+        private final int maxResources;
+        private final long maxBytes;
+        private @Nonnull Resource[] resources;
+        private int size = 0;
+        private long estimatedSize = 0;
+        private boolean sorted = true;
+
+        private Builder(@Nonnull MetricsProvider provider, @Nonnull String sourceLabel, int expectedSize) {
+            validateLabel(sourceLabel);
+            this.provider = provider;
+            this.sourceLabel = sourceLabel;
+            this.maxResources = GatingMetrics.getMaxResources(sourceLabel);
+            this.maxBytes = GatingMetrics.getMaxBytes(sourceLabel);
+            // Expected size can come from untrusted input
+            this.resources = new Resource[Math.max(Math.min(expectedSize, maxResources), 1)];
+        }
+
+        /**
+         * @throws IllegalArgumentException When the resource is invalid, or it exceeds the limits of the source label.
+         */
+        public @Nonnull Builder add(@Nonnull Resource resource) {
+            if (resource == null) throw new IllegalArgumentException("Snapshot cannot contain null resources");
+            validatePrefix(sourceLabel, resource.name);
+
+            if (sorted && size > 0) {
+                int cmp = RESOURCE_NAME_COMPARATOR.compare(resources[size - 1], resource);
+                if (cmp == 0) {
+                    resources[size - 1] = resource;
+                    return this;
+                }
+                sorted = cmp < 0;
+            }
+
+            // Checked as the resources come, not to collect more than would be retained. Overestimated with duplicates.
+            if (size == maxResources) {
+                throw new IllegalArgumentException(String.format(
+                        "Snapshot rejected, resources exceed the limit of %d", maxResources
+                ));
+            }
+            estimatedSize += estimateSize(resource);
+            if (estimatedSize > maxBytes) {
+                throw new IllegalArgumentException(String.format(
+                        "Snapshot rejected, estimated size exceeds the limit of %s", Functions.humanReadableByteSize(maxBytes)
+                ));
+            }
+
+            if (size == resources.length) {
+                resources = Arrays.copyOf(resources, (int) Math.min((long) size * 2, maxResources));
+            }
+            resources[size++] = resource;
+            return this;
+        }
+
+        public @Nonnull Builder addAll(@Nonnull Iterator<? extends Resource> resources) {
+            while (resources.hasNext()) {
+                add(resources.next());
+            }
+            return this;
+        }
+
+        public @Nonnull Builder addAll(@Nonnull Iterable<? extends Resource> resources) {
+            return addAll(resources.iterator());
+        }
+
+        public @Nonnull MetricsSnapshot build() {
+            if (!sorted) {
+                Arrays.sort(resources, 0, size, RESOURCE_NAME_COMPARATOR);
+                size = collapse(resources, size);
+                sorted = true;
+            }
+            return new MetricsSnapshot(provider, sourceLabel, resources, size);
+        }
+    }
+
     public static final class Resource {
+        /**
+         * Capacity of a resource that does not limit the number of builds using it.
+         */
+        public static final int UNLIMITED = -1;
+
         private final @Nonnull String name;
         private final @Nonnull ResourceStatus status;
         private final @CheckForNull String description;
+        private final int capacity;
+        private final @Nonnull Map<String, Double> metrics;
+
+        /**
+         * @param capacity Number of builds permitted to use the resource concurrently, or {@link #UNLIMITED}.
+         * @param metrics Numeric values reported for the resource, like latency or error rate.
+         */
+        public Resource(
+                @Nonnull String name,
+                @Nonnull ResourceStatus status,
+                @CheckForNull String description,
+                int capacity,
+                @Nonnull Map<String, Double> metrics
+        ) {
+            if (capacity < UNLIMITED) throw new IllegalArgumentException("Invalid capacity of " + name + ": " + capacity);
+            metrics.forEach((metric, value) -> {
+                if (metric == null || metric.isEmpty() || value == null || value.isNaN()) {
+                    throw new IllegalArgumentException(String.format("Invalid metric of %s: %s=%s", name, metric, value));
+                }
+            });
 
-        public Resource(@Nonnull String name, @Nonnull ResourceStatus status, @CheckForNull String description) {
             this.name = name;
             this.status = status;
             this.description = Util.fixEmptyAndTrim(description);
+            this.capacity = capacity;
+            this.metrics = metrics.isEmpty()
+                    ? Collections.emptyMap()
+                    : Collections.unmodifiableMap(new TreeMap<>(metrics))
+            ;
+        }
+
+        /**
+         * @param capacity Number of builds permitted to use the resource concurrently, or {@link #UNLIMITED}.
+         */
+        public Resource(@Nonnull String name, @Nonnull ResourceStatus status, @CheckForNull String description, int capacity) {
+            this(name, status, description, capacity, Collections.emptyMap());
+        }
+
+        public Resource(@Nonnull String name, @Nonnull ResourceStatus status, @CheckForNull String description) {
+            this(name, status, description, UNLIMITED);
         }
 
         public Resource(@Nonnull String name, @Nonnull ResourceStatus status) {
-            this.name = name;
-            this.status = status;
-            this.description = null;
+            this(name, status, null, UNLIMITED);
         }
 
         public @Nonnull String getName() {
@@ -127,22 +714,44 @@ public final class MetricsSnapshot {
             return description;
         }
 
+        /**
+         * Number of builds permitted to use the resource concurrently, or {@link #UNLIMITED}.
+         */
+        public int getCapacity() {
+            return capacity;
+        }
+
+        /**
+         * Numeric values reported for the resource, by metric name.
+         */
+        public @Nonnull Map<String, Double> getMetrics() {
+            return metrics;
+        }
+
         @Override
         public boolean equals(Object o) {
             if (this == o) return true;
             if (o == null || getClass() != o.getClass()) return false;
             Resource resource = (Resource) o;
-            return name.equals(resource.name) && status == resource.status && Objects.equals(description, resource.description);
+            return name.equals(resource.name)
+                    && status == resource.status
+                    && Objects.equals(description, resource.description)
+                    && capacity == resource.capacity
+                    && metrics.equals(resource.metrics)
+            ;
         }
 
         @Override
         public int hashCode() {
-            return Objects.hash(name, status, description);
+            return Objects.hash(name, status, description, capacity, metrics);
         }
 
         @Override
         public String toString() {
-            return String.format("Resource{name='%s', status=%s, description='%s'}", name, status, description);
+            return String.format(
+                    "Resource{name='%s', status=%s, description='%s', capacity=%d, metrics=%s}",
+                    name, status, description, capacity, metrics
+            );
         }
     }
 
@@ -155,7 +764,21 @@ public final class MetricsSnapshot {
         private final @Nonnull String sourceLabel;
 
         public Error(@Nonnull MetricsProvider provider, @Nonnull String sourceLabel, @Nonnull String message, @CheckForNull Throwable cause) {
-            super(message, cause);
+            this(provider, sourceLabel, message, cause, true);
+        }
+
+        /**
+         * @param captureStackTrace Capture the stack trace of the error. Not needed when the cause describes the
+         *                          problem, which saves the cost of capturing it for providers failing repeatedly.
+         */
+        public Error(
+                @Nonnull MetricsProvider provider,
+                @Nonnull String sourceLabel,
+                @Nonnull String message,
+                @CheckForNull Throwable cause,
+                boolean captureStackTrace
+        ) {
+            super(message, cause, true, captureStackTrace);
 
             FormValidation validation = GatingMetrics.validateLabel(sourceLabel);
             if (validation.kind != OK) throw new IllegalArgumentException(validation);
@@ -0,0 +1,90 @@
+/*
+ * Copyright (c) Red Hat, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.jenkins.plugins.gating;
+
+import javax.annotation.Nonnull;
+import java.time.Duration;
+import java.util.Set;
+
+/**
+ * Provider that has the data polled by gating core, instead of pushing them to {@link GatingMetrics} on its own.
+ *
+ * Core fetches the data periodically for every label, retries failed fetches with exponential backoff and reports the
+ * results or errors to {@link GatingMetrics}.
+ */
+public interface PollableMetricsProvider extends MetricsProvider {
+
+    /**
+     * Fetch current status of resources of the source label.
+     *
+     * Invoked concurrently for different labels, on a virtual thread when the JVM supports it. Implementations are
+     * expected to respond to interruption, as the fetch is interrupted once it exceeds {@link #getFetchTimeout(String)}.
+     *
+     * @param sourceLabel One of {@link #getLabels()}.
+     * @return Snapshot for the source label.
+     * @throws Exception When the data could not be fetched. The fetch will be retried.
+     */
+    @Nonnull MetricsSnapshot fetch(@Nonnull String sourceLabel) throws Exception;
+
+    /**
+     * Delay between two successful fetches, while some builds wait for the resources of the source.
+     */
+    default @Nonnull Duration getPollInterval(@Nonnull String sourceLabel) {
+        return Duration.ofMinutes(1);
+    }
+
+    /**
+     * Maximal delay between two successful fetches, while no builds wait for the resources of the source.
+     *
+     * The delay grows exponentially from {@link #getPollInterval(String)} to this value with every fetch without
+     * waiting builds. Equal to {@link #getPollInterval(String)} by default, so the source is polled at constant rate.
+     */
+    default @Nonnull Duration getIdlePollInterval(@Nonnull String sourceLabel) {
+        return getPollInterval(sourceLabel);
+    }
+
+    /**
+     * Notification the set of resources builds are waiting for has changed.
+     *
+     * Implementations can use this to fetch the waited for resources only, or fetch them with higher priority.
+     *
+     * @param sourceLabel One of {@link #getLabels()}.
+     * @param resources Resources of the source some queue items or pipelines are blocked on. Empty when none.
+     */
+    default void demandChanged(@Nonnull String sourceLabel, @Nonnull Set<String> resources) {
+        // Not interested by default
+    }
+
+    /**
+     * Maximal duration of a single fetch.
+     */
+    default @Nonnull Duration getFetchTimeout(@Nonnull String sourceLabel) {
+        return Duration.ofSeconds(30);
+    }
+
+    /**
+     * Number of retries of a failed fetch before the error is reported.
+     */
+    default int getMaxRetries(@Nonnull String sourceLabel) {
+        return 3;
+    }
+}
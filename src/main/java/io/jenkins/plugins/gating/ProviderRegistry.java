@@ -0,0 +1,159 @@
+/*
+ * Copyright (c) Red Hat, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.jenkins.plugins.gating;
+
+import hudson.Extension;
+import hudson.ExtensionList;
+import hudson.ExtensionListListener;
+import hudson.XmlFile;
+import hudson.model.Saveable;
+import hudson.model.listeners.SaveableListener;
+import hudson.util.FormValidation;
+import jenkins.model.GlobalConfiguration;
+import org.jenkinsci.Symbol;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Source labels claimed by the {@link MetricsProvider} extensions.
+ *
+ * Built on first use and rebuilt when providers are added or removed, or when any global configuration is saved, as
+ * providers can derive their labels from configurations other than their own.
+ */
+/*package*/ final class ProviderRegistry {
+
+    private volatile @CheckForNull Claims claims;
+    /**
+     * Incremented on invalidation, the claims are current when built for the latest generation. Invalidations while
+     * the claims are being built are not lost.
+     */
+    private final @Nonnull AtomicLong generation = new AtomicLong();
+    private final @Nonnull AtomicBoolean listening = new AtomicBoolean();
+
+    /*package*/ @Nonnull Claims get() {
+        long generation = this.generation.get();
+        Claims claims = this.claims;
+        if (claims == null || claims.generation != generation) {
+            if (listening.compareAndSet(false, true)) {
+                ExtensionList.lookup(MetricsProvider.class).addListener(new ExtensionListListener() {
+                    @Override public void onChange() {
+                        invalidate();
+                    }
+                });
+            }
+            claims = this.claims = new Claims(ExtensionList.lookup(MetricsProvider.class), generation);
+        }
+        return claims;
+    }
+
+    /*package*/ void invalidate() {
+        generation.incrementAndGet();
+    }
+
+    /*package*/ static final class Claims {
+        /**
+         * Providers of labels claimed by exactly one provider.
+         */
+        private final @Nonnull Map<String, MetricsProvider> owners = new HashMap<>();
+        private final @Nonnull List<String> conflicts = new ArrayList<>();
+        private final boolean hasLabels;
+        private final long generation;
+
+        private Claims(@Nonnull List<MetricsProvider> providers, long generation) {
+            this.generation = generation;
+            Set<String> contested = new HashSet<>();
+            for (MetricsProvider provider : providers) {
+                for (String label : provider.getLabels()) {
+                    FormValidation validation = GatingMetrics.validateLabel(label);
+                    if (validation.kind != FormValidation.Kind.OK) {
+                        conflicts.add(validation.getMessage());
+                    }
+
+                    MetricsProvider existingProvider = owners.putIfAbsent(label, provider);
+                    if (existingProvider != null) {
+                        conflicts.add(labelConflictError(provider, existingProvider, label));
+                        contested.add(label);
+                    }
+                }
+            }
+            hasLabels = !owners.isEmpty();
+            owners.keySet().removeAll(contested);
+        }
+
+        /**
+         * Whether the provider can report for the label.
+         *
+         * Labels not claimed by any provider, or claimed by several, are decided by the first report.
+         */
+        /*package*/ boolean accepts(@Nonnull String label, @Nonnull MetricsProvider provider) {
+            MetricsProvider owner = owners.get(label);
+            return owner == null || owner == provider;
+        }
+
+        /*package*/ @CheckForNull MetricsProvider ownerOf(@Nonnull String label) {
+            return owners.get(label);
+        }
+
+        /*package*/ @Nonnull List<String> getConflicts() {
+            return Collections.unmodifiableList(conflicts);
+        }
+
+        /*package*/ boolean hasLabels() {
+            return hasLabels;
+        }
+    }
+
+    /*package*/ static @Nonnull String labelConflictError(MetricsProvider lhs, MetricsProvider rhs, String sourceLabel) {
+        return String.format(
+                "Providers %s and %s have a colliding sourceLabel %s. Ignoring metrics update.",
+                getProviderDescription(lhs),
+                getProviderDescription(rhs),
+                sourceLabel
+        );
+    }
+
+    private static String getProviderDescription(MetricsProvider p) {
+        Symbol s = p.getClass().getAnnotation(Symbol.class);
+        return s == null ? p.toString() : s.value()[0];
+    }
+
+    @Extension
+    public static final class SaveableListenerImpl extends SaveableListener {
+        @Override
+        public void onChange(Saveable o, XmlFile file) {
+            // Providers are typically global configurations declaring their labels
+            if (o instanceof MetricsProvider || o instanceof GlobalConfiguration) {
+                GatingMetrics.get().getProviderRegistry().invalidate();
+            }
+        }
+    }
+}
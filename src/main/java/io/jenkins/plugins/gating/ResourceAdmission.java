@@ -0,0 +1,249 @@
+/*
+ * Copyright (c) Red Hat, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.jenkins.plugins.gating;
+
+import hudson.Extension;
+import hudson.ExtensionList;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.model.Job;
+import hudson.model.Queue;
+import hudson.model.Run;
+import hudson.model.listeners.RunListener;
+import hudson.model.queue.QueueListener;
+import jenkins.model.Jenkins;
+import jenkins.util.Timer;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Admission of builds to resources of limited capacity.
+ *
+ * Every resource reporting {@link MetricsSnapshot.Resource#getCapacity()} has a counting semaphore. {@link GatingDispatcher}
+ * only checks the free capacity, queue items acquire the permits once they leave the buildable state to start, and
+ * release them when the build completes or the item is cancelled. Pipeline steps hold them until the body completes.
+ *
+ * Permits are not persisted. On startup, they are acquired again for builds in progress among the latest builds of
+ * every gated job, and by the resumed pipeline steps whose body is running.
+ */
+@Extension
+@Restricted(NoExternalUse.class)
+public final class ResourceAdmission {
+
+    /**
+     * Number of permits acquired per resource name.
+     */
+    private final @Nonnull Map<String, AtomicInteger> used = new ConcurrentHashMap<>();
+
+    /**
+     * Resources holder acquired the permits for.
+     */
+    private final @Nonnull Map<String, List<String>> holders = new ConcurrentHashMap<>();
+
+    public static @Nonnull ResourceAdmission get() {
+        return ExtensionList.lookupSingleton(ResourceAdmission.class);
+    }
+
+    /*package*/ static @Nonnull String holderOf(@Nonnull Queue.Item item) {
+        return "queue:" + item.getId();
+    }
+
+    /*package*/ static @Nonnull String holderOf(@Nonnull Run<?, ?> run) {
+        return "queue:" + run.getQueueId();
+    }
+
+    /**
+     * Number of permits currently acquired for the resource.
+     */
+    public int getUsed(@Nonnull String resource) {
+        AtomicInteger counter = used.get(resource);
+        return counter == null ? 0 : counter.get();
+    }
+
+    /**
+     * Acquire a permit of every limited resource, or none.
+     *
+     * Acquiring again by the same holder succeeds without acquiring more permits.
+     *
+     * @param holder Identifier of the build or step to release the permits by.
+     * @param limits Capacity per resource name.
+     * @return Names of resources with no free permits. Empty if acquired.
+     */
+    /*package*/ @Nonnull List<String> tryAcquire(@Nonnull String holder, @Nonnull Map<String, Integer> limits) {
+        if (holders.containsKey(holder)) return Collections.emptyList();
+
+        List<String> acquired = new ArrayList<>(limits.size());
+        List<String> exhausted = new ArrayList<>();
+        limits.forEach((resource, capacity) -> {
+            AtomicInteger counter = used.computeIfAbsent(resource, r -> new AtomicInteger());
+            while (true) {
+                int current = counter.get();
+                if (current >= capacity) {
+                    exhausted.add(resource);
+                    return;
+                }
+                if (counter.compareAndSet(current, current + 1)) {
+                    acquired.add(resource);
+                    return;
+                }
+            }
+        });
+
+        if (exhausted.isEmpty()) {
+            holders.put(holder, acquired);
+        } else {
+            acquired.forEach(resource -> used.get(resource).decrementAndGet());
+        }
+        return exhausted;
+    }
+
+    /**
+     * Names of resources with no free permits, without acquiring any.
+     *
+     * @param holder Identifier of the build or step to acquire the permits later, null if there is none yet. Holding
+     *               them already is never exhausted.
+     * @param limits Capacity per resource name.
+     */
+    /*package*/ @Nonnull List<String> getExhausted(@CheckForNull String holder, @Nonnull Map<String, Integer> limits) {
+        if (holder != null && holders.containsKey(holder)) return Collections.emptyList();
+
+        List<String> exhausted = new ArrayList<>();
+        limits.forEach((resource, capacity) -> {
+            if (getUsed(resource) >= capacity) {
+                exhausted.add(resource);
+            }
+        });
+        return exhausted;
+    }
+
+    /**
+     * Acquire a permit of every resource regardless of its capacity.
+     *
+     * For holders admitted already, so they are accounted for even when the capacity is reported after the admission.
+     * Acquiring again by the same holder acquires nothing.
+     */
+    /*package*/ void acquire(@Nonnull String holder, @Nonnull Collection<String> resources) {
+        holders.computeIfAbsent(holder, h -> {
+            resources.forEach(resource -> used.computeIfAbsent(resource, r -> new AtomicInteger()).incrementAndGet());
+            return new ArrayList<>(resources);
+        });
+    }
+
+    /**
+     * Release permits of the holder, if any.
+     */
+    /*package*/ void release(@Nonnull String holder) {
+        List<String> released = drop(holder);
+        if (released.isEmpty()) return;
+
+        Jenkins jenkins = Jenkins.getInstanceOrNull();
+        if (jenkins == null) return;
+
+        // Nobody waits for the capacity of resources that have none
+        Map<String, MetricsSnapshot.Resource> metrics = GatingMetrics.get().getStatusOfAllResources();
+        List<String> limited = new ArrayList<>(released.size());
+        for (String resource : released) {
+            MetricsSnapshot.Resource status = metrics.get(resource);
+            if (status != null && status.getCapacity() != MetricsSnapshot.Resource.UNLIMITED) {
+                limited.add(resource);
+            }
+        }
+        if (limited.isEmpty()) return;
+
+        // Let those waiting for the capacity know
+        jenkins.getQueue().scheduleMaintenance();
+        if (GatingStep.isWaitingForAny(limited)) {
+            Timer.get().submit(GatingStep::metricsUpdated);
+        }
+    }
+
+    /**
+     * @return Resources the holder had permits of.
+     */
+    private @Nonnull List<String> drop(@Nonnull String holder) {
+        List<String> resources = holders.remove(holder);
+        if (resources == null) return Collections.emptyList();
+
+        resources.forEach(resource -> used.get(resource).decrementAndGet());
+        return resources;
+    }
+
+    @Initializer(after = InitMilestone.JOB_CONFIG_ADAPTED)
+    public static void restore() {
+        ResourceAdmission admission = get();
+        for (Job<?, ?> job : Jenkins.get().allItems(Job.class)) {
+            ResourceRequirementProperty property = job.getProperty(ResourceRequirementProperty.class);
+            if (property == null) continue;
+
+            // Builds in progress are the latest ones, do not load the whole history
+            for (Run<?, ?> run = job.getLastBuild(); run != null && run.isBuilding(); run = run.getPreviousBuild()) {
+                admission.acquire(holderOf(run), property.getResources());
+            }
+        }
+    }
+
+    @Extension
+    public static final class QueueListenerImpl extends QueueListener {
+        @Override
+        public void onLeaveBuildable(Queue.BuildableItem bi) {
+            // Acquired before the queue dispatches other items, so they see the capacity taken
+            if (!(bi.task instanceof Job<?, ?> job)) return;
+
+            ResourceRequirementProperty property = job.getProperty(ResourceRequirementProperty.class);
+            if (property != null) {
+                get().acquire(holderOf(bi), property.getResources());
+            }
+        }
+
+        @Override
+        public void onEnterBlocked(Queue.BlockedItem bi) {
+            // Left buildable to get blocked rather than to start. Nothing changed for the others, no need to notify.
+            get().drop(holderOf(bi));
+        }
+
+        @Override
+        public void onLeft(Queue.LeftItem li) {
+            // Started builds hold the permits until completed
+            if (li.isCancelled()) {
+                get().release(holderOf(li));
+            }
+        }
+    }
+
+    @Extension
+    public static final class RunListenerImpl extends RunListener<Run<?, ?>> {
+        @Override
+        public void onFinalized(Run<?, ?> run) {
+            get().release(holderOf(run));
+        }
+    }
+}
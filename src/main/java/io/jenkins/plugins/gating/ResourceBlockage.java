@@ -25,6 +25,7 @@ import com.google.common.base.Joiner;
 import hudson.model.queue.CauseOfBlockage;
 
 import javax.annotation.Nonnull;
+import java.util.Collections;
 import java.util.List;
 
 /**
@@ -33,10 +34,22 @@ import java.util.List;
 public final class ResourceBlockage extends CauseOfBlockage {
 
     private final List<String> missing;
+    private final List<String> resources;
 
     public ResourceBlockage(@Nonnull List<String> missing) {
+        this(missing, Collections.emptyList());
+    }
 
+    /*package*/ ResourceBlockage(@Nonnull List<String> missing, @Nonnull List<String> resources) {
         this.missing = missing;
+        this.resources = resources;
+    }
+
+    /**
+     * Names of the resources causing the blockage.
+     */
+    public @Nonnull List<String> getResources() {
+        return resources;
     }
 
     @Override
@@ -22,13 +22,16 @@
 package io.jenkins.plugins.gating;
 
 import hudson.Extension;
-import hudson.ExtensionList;
+import hudson.Util;
 import hudson.model.Job;
 import hudson.model.JobProperty;
 import hudson.model.JobPropertyDescriptor;
+import hudson.util.FormValidation;
 import net.sf.json.JSONObject;
 import org.jenkinsci.Symbol;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+import org.kohsuke.stapler.QueryParameter;
 import org.kohsuke.stapler.StaplerRequest2;
 
 import javax.annotation.CheckForNull;
@@ -37,6 +40,7 @@ import java.io.Serial;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -47,7 +51,15 @@ public final class ResourceRequirementProperty extends JobProperty<Job<?, ?>> im
 
     @Serial
     private static final long serialVersionUID = -4060336631507729998L;
+    /**
+     * Suffix of a requirement for all resources in a subtree, such as {@code openstack/region-1/*}.
+     */
+    public static final @Nonnull String SUBTREE = GatingMetrics.DELIM + "*";
+
     private final @Nonnull List<String> resources;
+    private @CheckForNull String thresholds;
+
+    private transient volatile List<Threshold> compiledThresholds;
 
     @DataBoundConstructor
     public ResourceRequirementProperty(@Nonnull List<String> resources) {
@@ -58,6 +70,45 @@ public final class ResourceRequirementProperty extends JobProperty<Job<?, ?>> im
         return resources;
     }
 
+    /**
+     * Thresholds on numeric metrics of resources, one per line.
+     *
+     * Required resource with a threshold declared is acceptable when {@link ResourceStatus.Category#DEGRADED}, provided
+     * its thresholds are met. Thresholds of resources not listed in {@link #getResources()} are evaluated on their own.
+     *
+     * @see Threshold#parse(String)
+     */
+    public @CheckForNull String getThresholds() {
+        return thresholds;
+    }
+
+    @DataBoundSetter
+    public void setThresholds(@CheckForNull String thresholds) {
+        List<Threshold> compiled = parseThresholds(thresholds);
+        this.thresholds = Util.fixEmptyAndTrim(thresholds);
+        this.compiledThresholds = compiled;
+    }
+
+    /*package*/ @Nonnull List<Threshold> getCompiledThresholds() {
+        List<Threshold> compiled = compiledThresholds;
+        if (compiled == null) {
+            compiled = compiledThresholds = parseThresholds(thresholds);
+        }
+        return compiled;
+    }
+
+    private static @Nonnull List<Threshold> parseThresholds(@CheckForNull String thresholds) {
+        if (thresholds == null || thresholds.isBlank()) return Collections.emptyList();
+
+        List<Threshold> compiled = new ArrayList<>();
+        for (String line : thresholds.split("\\R")) {
+            if (line.isBlank()) continue;
+
+            compiled.add(Threshold.parse(line));
+        }
+        return Collections.unmodifiableList(compiled);
+    }
+
     /**
      * Evaluate availability and return run/no-run decision.
      *
@@ -65,27 +116,165 @@ public final class ResourceRequirementProperty extends JobProperty<Job<?, ?>> im
      * @return null when satisfied, reasoning otherwise
      */
     public @CheckForNull ResourceBlockage evaluate(GatingMetrics availability) {
-        ArrayList<String> missing = new ArrayList<>();
+        return evaluate(availability, 0);
+    }
 
-        Map<String, MetricsSnapshot.Resource> metrics = availability.getStatusOfAllResources();
+    /**
+     * Evaluate availability, including the maintenance planned before the work is estimated to finish.
+     *
+     * @param estimatedDuration Milliseconds the work is expected to take, not positive when unknown.
+     */
+    /*package*/ @CheckForNull ResourceBlockage evaluate(@Nonnull GatingMetrics availability, long estimatedDuration) {
+        ResourceBlockage blockage = evaluate(availability.getAllResources());
+        return blockage != null
+                ? blockage
+                : availability.getMaintenance().evaluate(resources, estimatedDuration)
+        ;
+    }
+
+    /**
+     * Evaluate the way {@link GatingDispatcher} does before the work starts: status, planned maintenance and capacity.
+     *
+     * @param metrics State of resources to evaluate against, real or hypothetical
+     * @param estimatedDuration Milliseconds the work is expected to take, not positive when unknown.
+     * @param holder Identifier of the build or step to acquire the capacity, null if there is none yet
+     */
+    /*package*/ @CheckForNull ResourceBlockage evaluate(
+            @Nonnull GatingMetrics availability, @Nonnull ResourceView metrics, long estimatedDuration, @CheckForNull String holder
+    ) {
+        ResourceBlockage blockage = evaluate(metrics);
+        if (blockage == null) {
+            blockage = availability.getMaintenance().evaluate(resources, estimatedDuration);
+        }
+        if (blockage == null) {
+            blockage = checkCapacity(availability, holder);
+        }
+        return blockage;
+    }
+
+    /*package*/ @CheckForNull ResourceBlockage evaluate(@Nonnull ResourceView metrics) {
+        ArrayList<String> missing = null;
+        ArrayList<String> blocking = null;
+
+        List<Threshold> thresholds = getCompiledThresholds();
         for (String resourceName : resources) {
-            MetricsSnapshot.Resource resource = metrics.get(resourceName);
-            ResourceStatus status = resource == null
-                    ? ResourceStatus.Category.UNKNOWN
-                    : resource.getStatus()
-            ;
+            if (resourceName.endsWith(SUBTREE)) {
+                ResourceRollup rollup = metrics.rollup(resourceName.substring(0, resourceName.length() - SUBTREE.length()));
+                if (rollup == null || rollup.getCategory() != ResourceStatus.Category.UP) {
+                    if (missing == null) {
+                        missing = new ArrayList<>();
+                        blocking = new ArrayList<>();
+                    }
+                    missing.add(String.format("%s is %s", resourceName, rollup == null ? ResourceStatus.Category.UNKNOWN : rollup));
+                    blocking.add(resourceName);
+                }
+                continue;
+            }
+
+            ResourceStatus status = metrics.statusOf(resourceName);
+            if (status == null) {
+                status = ResourceStatus.Category.UNKNOWN;
+            }
 
-            if (status != ResourceStatus.Category.UP && status.getCategory() != ResourceStatus.Category.UP) {
+            if (!isSatisfied(status, hasThreshold(thresholds, resourceName))) {
+                if (missing == null) {
+                    missing = new ArrayList<>();
+                    blocking = new ArrayList<>();
+                }
                 missing.add(String.format("%s is %s", resourceName, status));
+                blocking.add(resourceName);
             }
         }
 
-        return missing.isEmpty()
+        for (int i = 0; i < thresholds.size(); i++) {
+            Threshold threshold = thresholds.get(i);
+            String violation = threshold.evaluate(metrics);
+            if (violation != null) {
+                if (missing == null) {
+                    missing = new ArrayList<>();
+                    blocking = new ArrayList<>();
+                }
+                missing.add(violation);
+                blocking.add(threshold.getResource());
+            }
+        }
+
+        return missing == null
                 ? null // No unsatisfied resource - run
-                : new ResourceBlockage(missing)
+                : new ResourceBlockage(missing, blocking)
+        ;
+    }
+
+    private static boolean isSatisfied(@Nonnull ResourceStatus status, boolean hasThreshold) {
+        ResourceStatus.Category category = status.getCategory();
+        return category == ResourceStatus.Category.UP
+                || (hasThreshold && category == ResourceStatus.Category.DEGRADED)
         ;
     }
 
+    private static boolean hasThreshold(@Nonnull List<Threshold> thresholds, @Nonnull String resourceName) {
+        for (int i = 0; i < thresholds.size(); i++) {
+            if (GatingMetrics.RESOURCE_ID_COMPARATOR.compare(thresholds.get(i).getResource(), resourceName) == 0) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Acquire capacity of the required resources of limited capacity.
+     *
+     * To be called once {@link #evaluate(GatingMetrics)} is satisfied. Permits are to be released by
+     * {@link ResourceAdmission#release(String)} once the holder is done using the resources.
+     *
+     * @param availability Real world state of resources
+     * @param holder Identifier of the build or step acquiring the capacity
+     * @return null when admitted, reasoning otherwise
+     */
+    /*package*/ @CheckForNull ResourceBlockage admit(@Nonnull GatingMetrics availability, @Nonnull String holder) {
+        Map<String, Integer> limits = getLimits(availability);
+        if (limits.isEmpty()) return null; // No limited resources
+
+        return toBlockage(limits, ResourceAdmission.get().tryAcquire(holder, limits));
+    }
+
+    /**
+     * Check there is capacity of the required resources of limited capacity, without acquiring it.
+     *
+     * @param availability Real world state of resources
+     * @param holder Identifier of the build or step to acquire the capacity, null if there is none yet
+     * @return null when admissible, reasoning otherwise
+     */
+    /*package*/ @CheckForNull ResourceBlockage checkCapacity(@Nonnull GatingMetrics availability, @CheckForNull String holder) {
+        Map<String, Integer> limits = getLimits(availability);
+        if (limits.isEmpty()) return null; // No limited resources
+
+        return toBlockage(limits, ResourceAdmission.get().getExhausted(holder, limits));
+    }
+
+    private @Nonnull Map<String, Integer> getLimits(@Nonnull GatingMetrics availability) {
+        Map<String, MetricsSnapshot.Resource> metrics = availability.getStatusOfAllResources();
+        Map<String, Integer> limits = Collections.emptyMap();
+        for (String resourceName : resources) {
+            MetricsSnapshot.Resource resource = metrics.get(resourceName);
+            if (resource == null || resource.getCapacity() == MetricsSnapshot.Resource.UNLIMITED) continue;
+
+            if (limits.isEmpty()) {
+                limits = new LinkedHashMap<>();
+            }
+            limits.put(resource.getName(), resource.getCapacity());
+        }
+        return limits;
+    }
+
+    private static @CheckForNull ResourceBlockage toBlockage(@Nonnull Map<String, Integer> limits, @Nonnull List<String> exhausted) {
+        if (exhausted.isEmpty()) return null;
+
+        ArrayList<String> missing = new ArrayList<>(exhausted.size());
+        for (String resourceName : exhausted) {
+            missing.add(String.format("%s has no free capacity (%d)", resourceName, limits.get(resourceName)));
+        }
+        return new ResourceBlockage(missing, exhausted);
+    }
+
     @Extension
     @Symbol("requireResources")
     public static final class Desc extends JobPropertyDescriptor {
@@ -104,9 +293,19 @@ public final class ResourceRequirementProperty extends JobProperty<Job<?, ?>> im
             return null;
         }
 
+        public FormValidation doCheckThresholds(@QueryParameter String value) {
+            try {
+                parseThresholds(value);
+                return FormValidation.ok();
+            } catch (IllegalArgumentException ex) {
+                return FormValidation.error(ex.getMessage());
+            }
+        }
+
         @Override
         public boolean isApplicable(Class<? extends Job> jobType) {
-            return ExtensionList.lookup(MetricsProvider.class).size() > 0;
+            // The push configuration is always present, but it does not provide anything until configured
+            return GatingMetrics.get().getProviderRegistry().get().hasLabels();
         }
     }
 }
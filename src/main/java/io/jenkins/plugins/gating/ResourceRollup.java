@@ -0,0 +1,78 @@
+/*
+ * Copyright (c) Red Hat, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.jenkins.plugins.gating;
+
+import javax.annotation.Nonnull;
+import java.util.Arrays;
+
+/**
+ * Number of resources per category in a subtree of resource names.
+ */
+public final class ResourceRollup {
+    private static final ResourceStatus.Category[] CATEGORIES = ResourceStatus.Category.values();
+
+    private final @Nonnull String path;
+    private final @Nonnull int[] counts;
+    private final int total;
+
+    /*package*/ ResourceRollup(@Nonnull String path, @Nonnull int[] counts) {
+        this.path = path;
+        this.counts = Arrays.copyOf(counts, CATEGORIES.length);
+        this.total = Arrays.stream(counts).sum();
+    }
+
+    public @Nonnull String getPath() {
+        return path;
+    }
+
+    public int getTotal() {
+        return total;
+    }
+
+    public int getCount(@Nonnull ResourceStatus.Category category) {
+        return counts[category.ordinal()];
+    }
+
+    /**
+     * The worst category of resources in the subtree.
+     */
+    public @Nonnull ResourceStatus.Category getCategory() {
+        for (int i = CATEGORIES.length - 1; i >= 0; i--) {
+            if (counts[i] > 0) return CATEGORIES[i];
+        }
+        return ResourceStatus.Category.UNKNOWN;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = CATEGORIES.length - 1; i >= 0; i--) {
+            if (counts[i] == 0) continue;
+
+            if (sb.length() > 0) {
+                sb.append(", ");
+            }
+            sb.append(counts[i]).append(' ').append(CATEGORIES[i]);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) Red Hat, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.jenkins.plugins.gating;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Index of hierarchical resource names, where every node counts resources in its subtree per category.
+ *
+ * Resource {@code openstack/region-1/nova} is counted in nodes {@code openstack}, {@code openstack/region-1} and
+ * {@code openstack/region-1/nova}. The counters are updated incrementally by the difference between the replaced and
+ * the new snapshot of a source, so the health of a subtree is available without visiting its resources.
+ *
+ * Not thread-safe, guarded by the lock of {@link GatingMetrics}.
+ */
+/*package*/ final class ResourceTree {
+    private static final ResourceStatus.Category[] CATEGORIES = ResourceStatus.Category.values();
+
+    /**
+     * Nodes by path. Nodes with no resources in their subtree are removed.
+     */
+    private final @Nonnull Map<String, Node> nodes = new TreeMap<>(GatingMetrics.RESOURCE_ID_COMPARATOR);
+
+    /**
+     * Account for the snapshot replacing the previous one of the same source.
+     *
+     * @return Number of resources added, removed or changing category.
+     */
+    /*package*/ int replace(@CheckForNull MetricsSnapshot replaced, @Nonnull MetricsSnapshot snapshot) {
+        if (replaced != null && replaced.hasSameCategories(snapshot)) return 0;
+
+        int changed = 0;
+        // Both snapshots are sorted by name
+        int r = 0;
+        int s = 0;
+        int replacedSize = replaced == null ? 0 : replaced.size();
+        int size = snapshot.size();
+        while (r < replacedSize || s < size) {
+            int cmp = r == replacedSize ? 1
+                    : s == size ? -1
+                    : GatingMetrics.RESOURCE_ID_COMPARATOR.compare(replaced.nameAt(r), snapshot.nameAt(s))
+            ;
+            if (cmp < 0) {
+                remove(replaced.nameAt(r), replaced.categoryAt(r));
+                changed++;
+                r++;
+            } else if (cmp > 0) {
+                add(snapshot.nameAt(s), snapshot.categoryAt(s));
+                changed++;
+                s++;
+            } else {
+                ResourceStatus.Category from = replaced.categoryAt(r);
+                ResourceStatus.Category to = snapshot.categoryAt(s);
+                if (from != to) {
+                    changed++;
+                    for (Node node = nodes.get(snapshot.nameAt(s)); node != null; node = node.parent) {
+                        node.counts[from.ordinal()]--;
+                        node.counts[to.ordinal()]++;
+                    }
+                }
+                r++;
+                s++;
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Counts of resources in the subtree, null when there are none.
+     */
+    /*package*/ @CheckForNull ResourceRollup rollup(@Nonnull String path) {
+        Node node = nodes.get(path);
+        return node == null ? null : new ResourceRollup(node.path, node.counts);
+    }
+
+    private void add(@Nonnull String name, @Nonnull ResourceStatus.Category category) {
+        for (Node node = node(name); node != null; node = node.parent) {
+            node.counts[category.ordinal()]++;
+            node.total++;
+        }
+    }
+
+    private void remove(@Nonnull String name, @Nonnull ResourceStatus.Category category) {
+        for (Node node = nodes.get(name); node != null; node = node.parent) {
+            node.counts[category.ordinal()]--;
+            node.total--;
+            if (node.total == 0) {
+                nodes.remove(node.path);
+            }
+        }
+    }
+
+    private @Nonnull Node node(@Nonnull String path) {
+        Node node = nodes.get(path);
+        if (node != null) return node;
+
+        int delim = path.lastIndexOf(GatingMetrics.DELIM);
+        Node parent = delim < 1 ? null : node(path.substring(0, delim));
+        node = new Node(path, parent);
+        nodes.put(path, node);
+        return node;
+    }
+
+    private static final class Node {
+        private final @Nonnull String path;
+        private final @CheckForNull Node parent;
+        private final @Nonnull int[] counts = new int[CATEGORIES.length];
+        private int total;
+
+        private Node(@Nonnull String path, @CheckForNull Node parent) {
+            this.path = path;
+            this.parent = parent;
+        }
+    }
+}
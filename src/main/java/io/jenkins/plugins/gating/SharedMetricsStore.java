@@ -0,0 +1,518 @@
+/*
+ * Copyright (c) Red Hat, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.jenkins.plugins.gating;
+
+import hudson.Extension;
+import hudson.ExtensionList;
+import hudson.Util;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.init.Terminator;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.FormValidation;
+import hudson.util.ListBoxModel;
+import hudson.util.NamingThreadFactory;
+import jenkins.model.GlobalConfiguration;
+import jenkins.model.Jenkins;
+import jenkins.util.SystemProperties;
+import net.sf.json.JSONObject;
+import org.jenkinsci.Symbol;
+import org.kohsuke.stapler.DataBoundSetter;
+import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.StaplerRequest2;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.GuardedBy;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Metrics shared among several controllers through a directory.
+ *
+ * A publishing controller writes every changed snapshot as a new version of a file per source label, consuming
+ * controllers map the latest versions to memory and apply them as their own metrics of the consumed source labels.
+ * Changes are noticed by a {@link WatchService}, and the directory is rescanned periodically in case notifications do
+ * not work, as on some network file systems.
+ */
+@Extension
+@Symbol("gatingSharedStore")
+public final class SharedMetricsStore extends GlobalConfiguration implements MetricsProvider {
+    private static final Logger LOGGER = Logger.getLogger(SharedMetricsStore.class.getName());
+
+    private static final long RESCAN_PERIOD = TimeUnit.SECONDS.toMillis(
+            SystemProperties.getLong(SharedMetricsStore.class.getName() + ".rescanSeconds", 60L)
+    );
+    private static final Pattern FILE_NAME = Pattern.compile("([a-zA-Z0-9_-]+)\\.(\\d+)\\.snapshot");
+    private static final int MAGIC = 0x474d5331; // GMS1
+
+    private static final ExecutorService PUBLISHER = Executors.newSingleThreadExecutor(
+            new NamingThreadFactory(new DaemonThreadFactory(), "SharedMetricsStore publisher")
+    );
+
+    public enum Mode {
+        DISABLED, PUBLISH, CONSUME
+    }
+
+    private volatile @Nonnull Mode mode = Mode.DISABLED;
+    private volatile @CheckForNull String directory;
+    private volatile @CheckForNull String consumedLabels;
+
+    private transient final @Nonnull Object lock = new Object();
+
+    /**
+     * Latest version written or read, by source label.
+     */
+    @GuardedBy("lock")
+    private transient final @Nonnull Map<String, Long> versions = new HashMap<>();
+
+    @GuardedBy("lock")
+    private transient @CheckForNull Watcher watcher;
+
+    public SharedMetricsStore() {
+        load();
+    }
+
+    public static @Nonnull SharedMetricsStore get() {
+        return ExtensionList.lookupSingleton(SharedMetricsStore.class);
+    }
+
+    public @Nonnull Mode getMode() {
+        return mode;
+    }
+
+    @DataBoundSetter
+    public void setMode(@CheckForNull Mode mode) {
+        this.mode = mode == null ? Mode.DISABLED : mode;
+    }
+
+    /**
+     * Directory shared by the controllers.
+     */
+    public @CheckForNull String getDirectory() {
+        return directory;
+    }
+
+    @DataBoundSetter
+    public void setDirectory(@CheckForNull String directory) {
+        this.directory = Util.fixEmptyAndTrim(directory);
+    }
+
+    /**
+     * Source labels consumed, separated by whitespace or commas.
+     */
+    public @CheckForNull String getConsumedLabels() {
+        return consumedLabels;
+    }
+
+    @DataBoundSetter
+    public void setConsumedLabels(@CheckForNull String consumedLabels) {
+        this.consumedLabels = Util.fixEmptyAndTrim(consumedLabels);
+    }
+
+    @Override
+    public boolean configure(StaplerRequest2 req, JSONObject json) throws FormException {
+        super.configure(req, json);
+        save();
+        // Once for all the fields changed
+        restart();
+        return true;
+    }
+
+    /**
+     * Claim the consumed labels, so local providers cannot report for them.
+     */
+    @Override
+    public @Nonnull Set<String> getLabels() {
+        if (mode != Mode.CONSUME || consumedLabels == null) return Collections.emptySet();
+
+        Set<String> claimed = new TreeSet<>(GatingMetrics.RESOURCE_ID_COMPARATOR);
+        for (String label : consumedLabels.split("[\\s,]+")) {
+            if (!label.isEmpty()) {
+                claimed.add(label);
+            }
+        }
+        return claimed;
+    }
+
+    private @CheckForNull Path getPath() {
+        return directory == null ? null : Paths.get(directory);
+    }
+
+    public ListBoxModel doFillModeItems() {
+        ListBoxModel items = new ListBoxModel();
+        items.add("Disabled", Mode.DISABLED.name());
+        items.add("Publish metrics of this controller", Mode.PUBLISH.name());
+        items.add("Consume metrics published by another controller", Mode.CONSUME.name());
+        return items;
+    }
+
+    public FormValidation doCheckDirectory(@QueryParameter String value) {
+        if (Util.fixEmptyAndTrim(value) == null) return FormValidation.ok();
+
+        return Files.isDirectory(Paths.get(value.trim()))
+                ? FormValidation.ok()
+                : FormValidation.warning("Not an existing directory")
+        ;
+    }
+
+    public FormValidation doCheckConsumedLabels(@QueryParameter String value) {
+        if (value == null) return FormValidation.ok();
+
+        for (String label : value.trim().split("[\\s,]+")) {
+            if (label.isEmpty()) continue;
+
+            FormValidation validation = GatingMetrics.validateLabel(label);
+            if (validation.kind != FormValidation.Kind.OK) return validation;
+        }
+        return FormValidation.ok();
+    }
+
+    @Initializer(after = InitMilestone.JOB_CONFIG_ADAPTED)
+    public static void startWatching() {
+        get().restart();
+    }
+
+    @Terminator
+    public static void stopWatching() {
+        SharedMetricsStore store = get();
+        synchronized (store.lock) {
+            if (store.watcher != null) {
+                store.watcher.close();
+                store.watcher = null;
+            }
+        }
+    }
+
+    private void restart() {
+        synchronized (lock) {
+            if (watcher != null) {
+                watcher.close();
+                watcher = null;
+            }
+            versions.clear();
+
+            Path path = getPath();
+            if (path == null) return;
+
+            if (mode == Mode.PUBLISH) {
+                // Changes are published as they come, start with what is known
+                for (String sourceLabel : GatingMetrics.get().getMetrics().keySet()) {
+                    publish(sourceLabel);
+                }
+            }
+            if (mode != Mode.CONSUME) return;
+
+            try {
+                watcher = new Watcher(path);
+            } catch (IOException ex) {
+                LOGGER.log(Level.WARNING, "Failed watching shared metrics directory " + path, ex);
+            }
+        }
+    }
+
+    /**
+     * Publish the changed snapshot, unless consumed from the directory.
+     *
+     * Called by {@link GatingMetrics} on every change of the resources, written in the background.
+     */
+    /*package*/ void metricsChanged(@Nonnull MetricsSnapshot snapshot) {
+        // Instances publishing consume nothing, so there is nothing to publish back
+        if (mode != Mode.PUBLISH) return;
+
+        String sourceLabel = snapshot.getSourceLabel();
+        PUBLISHER.execute(() -> publish(sourceLabel));
+    }
+
+    /**
+     * Write the current snapshot of the source label as its new version.
+     */
+    /*package*/ void publish(@Nonnull String sourceLabel) {
+        Path path = getPath();
+        if (mode != Mode.PUBLISH || path == null) return;
+
+        MetricsSnapshot snapshot = GatingMetrics.get().getMetrics().get(sourceLabel);
+        if (snapshot == null) return;
+
+        synchronized (lock) {
+            try {
+                Files.createDirectories(path);
+                long version = Math.max(versions.getOrDefault(sourceLabel, 0L), latestVersion(path, sourceLabel)) + 1;
+                write(path, snapshot, version);
+                versions.put(sourceLabel, version);
+                deleteVersionsBefore(path, sourceLabel, version - 1);
+            } catch (IOException ex) {
+                LOGGER.log(Level.WARNING, "Failed publishing shared metrics of " + sourceLabel, ex);
+            }
+        }
+    }
+
+    /**
+     * Write the snapshot atomically, readers never see it partially written.
+     */
+    /*package*/ static @Nonnull Path write(@Nonnull Path directory, @Nonnull MetricsSnapshot snapshot, long version) throws IOException {
+        String name = snapshot.getSourceLabel() + "." + version;
+        Path temp = directory.resolve(name + ".tmp");
+        Files.write(temp, encode(snapshot, version));
+        return Files.move(temp, directory.resolve(name + ".snapshot"), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Apply the latest versions of the consumed labels not applied yet.
+     */
+    /*package*/ void scan(@Nonnull Path path) {
+        Set<String> consumed = getLabels();
+        Map<String, Path> latest = new TreeMap<>();
+        Map<String, Long> latestVersions = new HashMap<>();
+        try (Stream<Path> files = Files.list(path)) {
+            files.forEach(file -> {
+                Matcher matcher = FILE_NAME.matcher(file.getFileName().toString());
+                if (!matcher.matches() || !consumed.contains(matcher.group(1))) return;
+
+                long version = Long.parseLong(matcher.group(2));
+                if (version > latestVersions.getOrDefault(matcher.group(1), -1L)) {
+                    latestVersions.put(matcher.group(1), version);
+                    latest.put(matcher.group(1), file);
+                }
+            });
+        } catch (IOException ex) {
+            LOGGER.log(Level.WARNING, "Failed listing shared metrics directory " + path, ex);
+            return;
+        }
+
+        latest.forEach((label, file) -> {
+            long version = latestVersions.get(label);
+            synchronized (lock) {
+                if (version <= versions.getOrDefault(label, 0L)) return; // Applied already
+                versions.put(label, version);
+            }
+
+            try {
+                MetricsSnapshot snapshot = read(file, this);
+                if (snapshot.getSourceLabel().equals(label)) {
+                    GatingMetrics.get().submit(snapshot);
+                }
+            } catch (NoSuchFileException ex) {
+                // Replaced by a newer version in the meantime, noticed by the next scan
+            } catch (IOException | RuntimeException ex) {
+                GatingMetrics.get().submitError(new MetricsSnapshot.Error(
+                        this, label, "Failed reading shared metrics " + file + ": " + ex.getMessage(), ex
+                ));
+            }
+        });
+    }
+
+    private static long latestVersion(@Nonnull Path directory, @Nonnull String sourceLabel) throws IOException {
+        long latest = 0;
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Matcher matcher = FILE_NAME.matcher(file.getFileName().toString());
+                if (matcher.matches() && matcher.group(1).equals(sourceLabel)) {
+                    latest = Math.max(latest, Long.parseLong(matcher.group(2)));
+                }
+            }
+        }
+        return latest;
+    }
+
+    /**
+     * Readers might still be mapping the previous version, so that one is kept.
+     */
+    private static void deleteVersionsBefore(@Nonnull Path directory, @Nonnull String sourceLabel, long version) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Matcher matcher = FILE_NAME.matcher(file.getFileName().toString());
+                if (matcher.matches() && matcher.group(1).equals(sourceLabel) && Long.parseLong(matcher.group(2)) < version) {
+                    Files.deleteIfExists(file);
+                }
+            }
+        }
+    }
+
+    private static @Nonnull byte[] encode(@Nonnull MetricsSnapshot snapshot, long version) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeLong(version);
+        writeString(out, snapshot.getSourceLabel());
+        out.writeInt(snapshot.size());
+        for (int i = 0; i < snapshot.size(); i++) {
+            MetricsSnapshot.Resource resource = snapshot.resourceAt(i);
+            writeString(out, resource.getName());
+            out.writeByte(resource.getStatus().getCategory().ordinal());
+            // Service-specific statuses are restored where their class is available
+            ResourceStatus status = resource.getStatus();
+            writeString(out, status instanceof Enum<?> e ? e.getDeclaringClass().getName() + "#" + e.name() : null);
+            writeString(out, resource.getDescription());
+            out.writeInt(resource.getCapacity());
+            out.writeInt(resource.getMetrics().size());
+            for (Map.Entry<String, Double> metric : resource.getMetrics().entrySet()) {
+                writeString(out, metric.getKey());
+                out.writeDouble(metric.getValue());
+            }
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /*package*/ static @Nonnull MetricsSnapshot read(@Nonnull Path file, @Nonnull MetricsProvider provider) throws IOException {
+        ByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        if (buffer.getInt() != MAGIC) throw new IOException("Not a shared metrics snapshot: " + file);
+        buffer.getLong(); // Version, encoded in the file name
+        String sourceLabel = readString(buffer);
+        int size = buffer.getInt();
+        if (size < 0) throw new IOException("Invalid number of resources in " + file + ": " + size);
+
+        // Written in order, so no sorting needed. Limits are enforced as the resources are read.
+        MetricsSnapshot.Builder builder = MetricsSnapshot.builder(provider, sourceLabel, Math.min(size, buffer.remaining()));
+        for (int i = 0; i < size; i++) {
+            String name = readString(buffer);
+            ResourceStatus.Category category = ResourceStatus.Category.values()[buffer.get()];
+            ResourceStatus status = statusOf(readString(buffer), category);
+            String description = readString(buffer);
+            int capacity = buffer.getInt();
+            int metricCount = buffer.getInt();
+            Map<String, Double> metrics = metricCount == 0 ? Collections.emptyMap() : new HashMap<>();
+            for (int m = 0; m < metricCount; m++) {
+                metrics.put(readString(buffer), buffer.getDouble());
+            }
+            builder.add(new MetricsSnapshot.Resource(name, status, description, capacity, metrics));
+        }
+        return builder.build();
+    }
+
+    private static @Nonnull ResourceStatus statusOf(@CheckForNull String status, @Nonnull ResourceStatus.Category category) {
+        if (status == null) return category;
+
+        int delim = status.indexOf('#');
+        try {
+            Class<?> type = Class.forName(status.substring(0, delim), false, Jenkins.get().getPluginManager().uberClassLoader);
+            if (type.isEnum() && ResourceStatus.class.isAssignableFrom(type)) {
+                for (Object constant : type.getEnumConstants()) {
+                    if (((Enum<?>) constant).name().equals(status.substring(delim + 1))) return (ResourceStatus) constant;
+                }
+            }
+        } catch (ClassNotFoundException ex) {
+            // Provider not installed on this controller
+        }
+        return category;
+    }
+
+    private static void writeString(@Nonnull DataOutputStream out, @CheckForNull String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static @CheckForNull String readString(@Nonnull ByteBuffer buffer) throws IOException {
+        int length = buffer.getInt();
+        if (length < 0) return null;
+        // Do not allocate what the file cannot hold
+        if (length > buffer.remaining()) throw new IOException("Invalid string length " + length + ", " + buffer.remaining() + " bytes left");
+
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Apply the changes of the directory as they are noticed.
+     */
+    private final class Watcher implements Runnable {
+        private final @Nonnull Path path;
+        private final @Nonnull WatchService watchService;
+        private final @Nonnull ExecutorService thread = Executors.newSingleThreadExecutor(
+                new NamingThreadFactory(new DaemonThreadFactory(), "SharedMetricsStore watcher")
+        );
+
+        private Watcher(@Nonnull Path path) throws IOException {
+            this.path = path;
+            Files.createDirectories(path);
+            this.watchService = path.getFileSystem().newWatchService();
+            path.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+            thread.execute(this);
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    scan(path);
+
+                    WatchKey key = watchService.poll(RESCAN_PERIOD, TimeUnit.MILLISECONDS);
+                    if (key != null) {
+                        key.pollEvents(); // Rescanned anyway
+                        key.reset();
+                    }
+                }
+            } catch (ClosedWatchServiceException | InterruptedException ex) {
+                // Stopped
+            }
+        }
+
+        private void close() {
+            try {
+                watchService.close();
+            } catch (IOException ex) {
+                LOGGER.log(Level.WARNING, "Failed closing watch service", ex);
+            }
+            thread.shutdownNow();
+        }
+    }
+
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) Red Hat, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.jenkins.plugins.gating;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import java.io.Serial;
+import java.io.Serializable;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Requirement on a numeric metric reported for a resource, such as {@code openstack/region-1:latency_p99 < 200}.
+ *
+ * Thresholds are parsed once, so evaluating them does only a lookup and a comparison.
+ */
+public final class Threshold implements Serializable {
+    @Serial
+    private static final long serialVersionUID = -1860347213850113624L;
+
+    private static final Pattern SYNTAX = Pattern.compile("^(.+):([A-Za-z0-9_.-]+)\\s*(<=|>=|==|!=|<|>)\\s*(\\S+)$");
+
+    private final @Nonnull String resource;
+    private final @Nonnull String sourceLabel;
+    private final @Nonnull String metric;
+    private final @Nonnull Operator operator;
+    private final double value;
+
+    private Threshold(@Nonnull String resource, @Nonnull String metric, @Nonnull Operator operator, double value) {
+        int delim = resource.indexOf(GatingMetrics.DELIM);
+        if (delim < 1) throw new IllegalArgumentException("Resource name not prefixed with source label: " + resource);
+
+        this.resource = resource;
+        this.sourceLabel = resource.substring(0, delim);
+        this.metric = metric;
+        this.operator = operator;
+        this.value = value;
+    }
+
+    /**
+     * Parse threshold in format {@code <resource>:<metric> <operator> <value>}.
+     *
+     * @throws IllegalArgumentException When the threshold is malformed.
+     */
+    public static @Nonnull Threshold parse(@Nonnull String threshold) {
+        Matcher matcher = SYNTAX.matcher(threshold.trim());
+        if (!matcher.matches()) throw new IllegalArgumentException(
+                "Malformed threshold '" + threshold + "', expected '<resource>:<metric> <operator> <value>'"
+        );
+
+        double value;
+        try {
+            value = Double.parseDouble(matcher.group(4));
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException("Malformed threshold value in '" + threshold + "'", ex);
+        }
+        if (Double.isNaN(value)) throw new IllegalArgumentException("Malformed threshold value in '" + threshold + "'");
+
+        return new Threshold(matcher.group(1).trim(), matcher.group(2), Operator.of(matcher.group(3)), value);
+    }
+
+    public @Nonnull String getResource() {
+        return resource;
+    }
+
+    public @Nonnull String getMetric() {
+        return metric;
+    }
+
+    /**
+     * Evaluate the threshold against reported metrics.
+     *
+     * @return null when satisfied, reasoning otherwise.
+     */
+    /*package*/ @CheckForNull String evaluate(@Nonnull ResourceView resources) {
+        double actual = resources.metricOf(sourceLabel, resource, metric);
+        if (Double.isNaN(actual)) return String.format("%s does not report %s", resource, metric);
+        if (operator.test(actual, value)) return null;
+
+        return String.format("%s %s is %s, required %s %s", resource, metric, actual, operator.symbol, value);
+    }
+
+    @Override
+    public String toString() {
+        return resource + ":" + metric + " " + operator.symbol + " " + value;
+    }
+
+    private enum Operator {
+        LT("<"), LE("<="), GT(">"), GE(">="), EQ("=="), NE("!=");
+
+        private final @Nonnull String symbol;
+
+        Operator(@Nonnull String symbol) {
+            this.symbol = symbol;
+        }
+
+        private static @Nonnull Operator of(@Nonnull String symbol) {
+            for (Operator operator : values()) {
+                if (operator.symbol.equals(symbol)) return operator;
+            }
+            throw new IllegalArgumentException("Unknown operator " + symbol);
+        }
+
+        private boolean test(double actual, double required) {
+            switch (this) {
+                case LT: return actual < required;
+                case LE: return actual <= required;
+                case GT: return actual > required;
+                case GE: return actual >= required;
+                case EQ: return actual == required;
+                case NE: return actual != required;
+                default: throw new AssertionError(this);
+            }
+        }
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright (c) Red Hat, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.jenkins.plugins.gating.GatingJournal
+
+import hudson.Util
+import hudson.model.Job
+import io.jenkins.plugins.gating.GatingJournal
+import jenkins.model.Jenkins
+
+def l = namespace(lib.LayoutTagLib)
+
+GatingJournal journal = (GatingJournal) my
+def report = journal.report
+
+style("""
+        table.journal th {
+            text-align: left;
+        }
+
+        table.journal td.name {
+            font-family: monospace;
+            font-weight: bold;
+        }
+""")
+
+def waitedTable = { String title, Map<String, Long> waited ->
+    table(class: "pane sortable bigtable journal", width: "100%") {
+        tr {
+            th { text(title) }
+            th { text("Time waited") }
+        }
+        waited.sort { -it.value }.each { name, millis ->
+            tr {
+                td(class: "name") { text(name) }
+                td("data": millis) { text(Util.getTimeSpanString(millis)) }
+            }
+        }
+    }
+}
+
+l.layout(permission: Job.CONFIGURE) {
+    include(Jenkins.get(), "sidepanel.jelly")
+    l.header(title: "Time waited on resources")
+    l.main_panel {
+        h1("Time waited on resources")
+
+        p("${report.waiting} builds or steps waiting now.")
+
+        if (report.waitedByJob.isEmpty()) {
+            p(strong("Nothing waited for resources yet."))
+        } else {
+            h2("Jobs")
+            waitedTable("Job", report.waitedByJob)
+
+            h2("Resources")
+            waitedTable("Resource", report.waitedByResource)
+        }
+    }
+}
@@ -23,10 +23,15 @@ package io.jenkins.plugins.gating.GatingMetrics
 
 import hudson.Functions
 
+def error = my.latest
 p {
-    strong(style: "color:red;") { text(my.getMessage()) }
-    small(" (${my.created})")
-    if (my.cause) {
-        pre(Functions.printThrowable(my.cause))
+    strong(style: "color:red;") { text(error.getMessage()) }
+    if (my.count == 1) {
+        small(" (${my.lastSeen})")
+    } else {
+        small(" (${my.count} times in a row, first at ${my.firstSeen}, last at ${my.lastSeen})")
+    }
+    if (error.cause) {
+        pre(Functions.printThrowable(error.cause))
     }
 }
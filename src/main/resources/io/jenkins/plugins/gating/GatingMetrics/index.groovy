@@ -22,20 +22,27 @@
 package io.jenkins.plugins.gating.Gatingmetrics
 
 
+import hudson.Functions
 import hudson.model.Job
+import io.jenkins.plugins.gating.GatedJobIndex
+import io.jenkins.plugins.gating.GatingEventStream
 import io.jenkins.plugins.gating.GatingMetrics
+import io.jenkins.plugins.gating.MetricsSnapshot
+import io.jenkins.plugins.gating.ResourceAdmission
 
 def l = namespace(lib.LayoutTagLib)
 st = namespace("jelly:stapler")
 
 GatingMetrics gating = (GatingMetrics) my
+ResourceAdmission admission = ResourceAdmission.get()
+GatedJobIndex jobIndex = GatedJobIndex.get()
 
 style("""
-        #metrics th {
+        #metrics th, #maintenance th {
             text-align: left;
         }
 
-        #metrics td.resource-name {
+        #metrics td.resource-name, #maintenance td.resource-name {
             font-family: monospace;
             font-weight: bold;
         }
@@ -53,6 +60,19 @@ style("""
             background-color: #ff7171;
         }
 
+        .rollup strong.UP {
+            color: #1f8f1f;
+        }
+        .rollup strong.DEGRADED {
+            color: #c78a00;
+        }
+        .rollup strong.UNKNOWN {
+            color: #777;
+        }
+        .rollup strong.DOWN {
+            color: #d00;
+        }
+
         h2 {
             padding-top: 2em;
         }
@@ -63,6 +83,9 @@ l.layout(permission: Job.CONFIGURE) {
     l.header(title: gating.displayName)
     l.main_panel {
         h1(gating.displayName)
+        p {
+            a(href: "journal") { text("Time waited on resources") }
+        }
 
         gating.detectedConflicts.each {msg ->
             p {
@@ -70,12 +93,14 @@ l.layout(permission: Job.CONFIGURE) {
             }
         }
 
+        // Read before the metrics, so the page catches up with all changes made since
+        long since = GatingEventStream.get().sequence
         def metrics = gating.metrics
         if (metrics.isEmpty()) {
             p(strong("No metrics available. Either no sources were configured, or the data have not been received yet."))
         }
 
-        def errors = gating.errors
+        def errors = gating.errorRecords
         def errorsWithoutData = new HashMap<>(errors)
         errorsWithoutData.keySet().removeAll(metrics.keySet())
 
@@ -92,28 +117,79 @@ l.layout(permission: Job.CONFIGURE) {
                 errors.remove(sourceLabel)
             }
 
+            def rollup = gating.getRollup(sourceLabel)
+            if (rollup) {
+                p(class: "rollup", "data-source": sourceLabel) {
+                    strong(class: rollup.category.name()) { text(rollup.category) }
+                    span(class: "summary") { text(" ${rollup.total} resources: $rollup") }
+                }
+            }
+
             small(snapshot.created)
+            small(class: "usage") {
+                text(" ${snapshot.statuses.size()} of ${GatingMetrics.getMaxResources(sourceLabel)} resources,")
+                text(" ~${Functions.humanReadableByteSize(snapshot.estimatedSize)} of ${Functions.humanReadableByteSize(GatingMetrics.getMaxBytes(sourceLabel))}")
+            }
             table(class: "pane sortable bigtable", width: "100%", id: "metrics") {
                 tr {
                     th { text("Resource") }
                     th { text("Status") }
                     th { text("Description") }
+                    th { text("Dependents") }
                 }
                 snapshot.statuses.each { resourceName, resource ->
                     def status = resource.status
-                    tr {
+                    tr("data-resource": resourceName) {
                         td(class: "resource-name") { text(resourceName) }
                         td(class: status.getCategory().name()) {
-                            strong(text(status))
+                            strong(class: "status") { text(status) }
                             def category = status.getCategory()
-                            if (category != status) {
-                                small(" ($category)")
+                            small(class: "category") {
+                                if (category != status) {
+                                    text(" ($category)")
+                                }
+                            }
+                            if (resource.capacity != MetricsSnapshot.Resource.UNLIMITED) {
+                                small(" (${admission.getUsed(resource.name)} of ${resource.capacity} used)")
                             }
                         }
                         td { text(resource.description) }
+                        td {
+                            def impact = jobIndex.getImpact(resourceName)
+                            a(href: "impact?resource=" + URLEncoder.encode(resourceName, "UTF-8")) {
+                                text("${impact.jobs.size()} jobs")
+                            }
+                            if (impact.queued > 0 || impact.paused > 0) {
+                                text(", ${impact.queued} queued, ${impact.paused} paused")
+                            }
+                        }
                     }
                 }
             }
         }
+
+        def windows = gating.maintenanceWindows
+        if (!windows.isEmpty()) {
+            h2("Planned maintenance")
+            table(class: "pane sortable bigtable", width: "100%", id: "maintenance") {
+                tr {
+                    th { text("Resource") }
+                    th { text("From") }
+                    th { text("Until") }
+                    th { text("Description") }
+                }
+                windows.each { window ->
+                    tr {
+                        td(class: "resource-name") { text(window.resource) }
+                        td { text(window.start) }
+                        td { text(window.end) }
+                        td { text(window.description) }
+                    }
+                }
+            }
+        }
+
+        div(id: "gating-live", "data-url": "${rootURL}/${gating.urlName}/events?since=${since}")
+        script(type: "text/javascript", src: "${rootURL}/plugin/gating-core/js/gating-live.js")
     }
 }
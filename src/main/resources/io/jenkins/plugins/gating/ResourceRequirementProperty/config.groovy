@@ -47,4 +47,7 @@ f.optionalBlock(field: "declares_resources", inline: true, checked: rrp != null,
             }
         }
     }
+    f.entry(field: "thresholds", title: "Metric thresholds") {
+        f.textarea(value: rrp?.thresholds)
+    }
 }
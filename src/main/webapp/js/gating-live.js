@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) Red Hat, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+// Apply resource changes streamed by GatingEventStream to the rendered Gating Metrics page
+(function () {
+    var live = document.getElementById("gating-live");
+    if (!live || !window.EventSource) return;
+
+    var lastId = -1;
+    var source = new EventSource(live.getAttribute("data-url"));
+
+    function fresh(event) {
+        // Catching up after reconnect can repeat events already applied. Ids keep growing across Jenkins restarts and
+        // the server sends reload when it cannot catch up, so an older id is always a repeat
+        var id = parseInt(event.lastEventId, 10);
+        if (id <= lastId) return false;
+        lastId = id;
+        return true;
+    }
+
+    function reload() {
+        source.close();
+        window.location.reload();
+    }
+
+    function find(attribute, value) {
+        var elements = document.querySelectorAll("[" + attribute + "]");
+        for (var i = 0; i < elements.length; i++) {
+            // Names are case insensitive
+            if (elements[i].getAttribute(attribute).toLowerCase() === value.toLowerCase()) return elements[i];
+        }
+        return null;
+    }
+
+    source.addEventListener("resource", function (event) {
+        if (!fresh(event)) return;
+
+        var change = JSON.parse(event.data);
+        var row = find("data-resource", change.resource);
+        if (row === null || change.status === null) {
+            // Resource added or removed, render the table anew
+            reload();
+            return;
+        }
+
+        var cell = row.cells[1];
+        cell.className = change.category;
+        cell.querySelector(".status").textContent = change.status;
+        cell.querySelector(".category").textContent = change.status === change.category ? "" : " (" + change.category + ")";
+    });
+
+    source.addEventListener("rollup", function (event) {
+        if (!fresh(event)) return;
+
+        var rollup = JSON.parse(event.data);
+        var line = find("data-source", rollup.source);
+        if (line === null) return;
+
+        var category = line.querySelector("strong");
+        category.className = rollup.category;
+        category.textContent = rollup.category;
+        line.querySelector(".summary").textContent = " " + rollup.summary;
+    });
+
+    source.addEventListener("reload", reload);
+})();
@@ -22,19 +22,34 @@
 package io.jenkins.plugins.gating;
 
 import com.google.common.collect.ImmutableSet;
+import hudson.model.FreeStyleBuild;
 import hudson.model.FreeStyleProject;
+import hudson.model.Item;
 import hudson.model.JobProperty;
+import hudson.model.ParametersAction;
+import hudson.model.ParametersDefinitionProperty;
 import hudson.model.Queue;
+import hudson.model.Run;
+import hudson.model.StringParameterDefinition;
+import hudson.model.StringParameterValue;
 import hudson.model.queue.CauseOfBlockage;
 import javaposse.jobdsl.plugin.ExecuteDslScripts;
+import jenkins.model.Jenkins;
 import org.junit.Rule;
 import org.junit.Test;
 import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.MockAuthorizationStrategy;
+import org.jvnet.hudson.test.SleepBuilder;
 import org.jvnet.hudson.test.TestExtension;
 
 import javax.annotation.Nonnull;
 import java.io.IOException;
+import java.lang.reflect.Field;
+import java.time.Instant;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Set;
 
@@ -42,9 +57,13 @@ import static io.jenkins.plugins.gating.ResourceStatus.Category.UP;
 import static io.jenkins.plugins.gating.Utils.snapshot;
 import static java.util.Arrays.asList;
 import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
 import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.not;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThrows;
 import static org.junit.Assert.assertTrue;
 
 public class FreestyleGatingTest {
@@ -103,6 +122,297 @@ public class FreestyleGatingTest {
         );
     }
 
+    @Test
+    public void collapseTriggersWhileBlocked() throws Exception {
+        FreeStyleProject p = j.createFreeStyleProject();
+        p.addProperty(new ParametersDefinitionProperty(new StringParameterDefinition("P", "")));
+        p.addProperty(new ResourceRequirementProperty(Collections.singletonList(RES1)));
+
+        Queue queue = j.getInstance().getQueue();
+        assertNotNull(p.scheduleBuild2(0, new ParametersAction(new StringParameterValue("P", "a"))));
+        Utils.await(() -> queue.getItem(p).isBlocked());
+
+        // Same build is folded into the blocked item by the queue, waiting for it still works
+        assertNotNull(p.scheduleBuild2(0, new ParametersAction(new StringParameterValue("P", "a"))));
+        assertEquals(1, queue.getItems(p).size());
+        assertNotNull(p.scheduleBuild2(0, new ParametersAction(new StringParameterValue("P", "b"))));
+        assertEquals(2, queue.getItems(p).size());
+
+        Utils.setStatus(Utils.snapshot(RES1, UP));
+        j.waitUntilNoActivity();
+        assertEquals(2, p.getBuilds().size());
+    }
+
+    @Test
+    public void admitUpToCapacity() throws Exception {
+        j.jenkins.setNumExecutors(2);
+
+        HashMap<String, MetricsSnapshot.Resource> resources = new HashMap<>();
+        resources.put(RES1, new MetricsSnapshot.Resource(RES1, TestStatus.OK, null, 1));
+        Utils.setStatus(resources);
+
+        FreeStyleProject first = j.createFreeStyleProject();
+        first.addProperty(new ResourceRequirementProperty(Collections.singletonList(RES1)));
+        first.getBuildersList().add(new SleepBuilder(5000));
+        FreeStyleProject second = j.createFreeStyleProject();
+        second.addProperty(new ResourceRequirementProperty(Collections.singletonList(RES1)));
+
+        first.scheduleBuild2(0).waitForStart();
+        assertEquals(1, ResourceAdmission.get().getUsed(RES1));
+
+        Queue.Item item = runJob(second);
+        assertEquals(
+                String.format("Some resources are not available: %s has no free capacity (1)", RES1),
+                item.getCauseOfBlockage().getShortDescription()
+        );
+
+        j.waitUntilNoActivity();
+        assertNotNull(second.getLastBuild());
+    }
+
+    @Test
+    public void notifyListeners() throws Exception {
+        FreeStyleProject p = j.createFreeStyleProject();
+        p.addProperty(new ResourceRequirementProperty(Collections.singletonList(RES1)));
+
+        Queue.Item item = runJob(p);
+        assertNotNull(item);
+
+        Utils.setStatus(Utils.snapshot(RES1, UP));
+        j.waitUntilNoActivity();
+
+        RecordingListener listener = j.jenkins.getExtensionList(GatingListener.class).get(RecordingListener.class);
+        Utils.await(() -> listener.events.size() >= 3);
+        assertEquals(asList(
+                "blocked " + p.getFullDisplayName() + ": " + RES1,
+                "statuspage: [" + RES1 + ": null -> UP]",
+                "unblocked " + p.getFullDisplayName()
+        ), listener.events);
+    }
+
+    @TestExtension("notifyListeners")
+    public static final class RecordingListener extends GatingListener {
+        private final List<String> events = Collections.synchronizedList(new ArrayList<>());
+
+        @Override
+        public void onResourcesChanged(@Nonnull String sourceLabel, @Nonnull List<Transition> transitions) {
+            events.add(sourceLabel + ": " + transitions);
+        }
+
+        @Override
+        public void onBlocked(@Nonnull Waiter waiter, @Nonnull ResourceBlockage blockage) {
+            events.add("blocked " + waiter + ": " + String.join(", ", blockage.getResources()));
+        }
+
+        @Override
+        public void onUnblocked(@Nonnull Waiter waiter) {
+            events.add("unblocked " + waiter);
+        }
+    }
+
+    @Test
+    public void indexGatedJobs() throws Exception {
+        FreeStyleProject direct = j.createFreeStyleProject("direct");
+        direct.addProperty(new ResourceRequirementProperty(Collections.singletonList(RES1)));
+        FreeStyleProject subtree = j.createFreeStyleProject("subtree");
+        subtree.addProperty(new ResourceRequirementProperty(Collections.singletonList("statuspage/pageA/*")));
+        j.createFreeStyleProject("ungated");
+
+        GatedJobIndex index = GatedJobIndex.get();
+        assertEquals(ImmutableSet.of("direct", "subtree"), index.getJobs(RES1));
+        assertEquals(ImmutableSet.of(), index.getJobs(RES2));
+
+        // Kept current after built
+        direct.renameTo("renamed");
+        assertEquals(ImmutableSet.of("renamed", "subtree"), index.getJobs(RES1.toUpperCase()));
+        FreeStyleProject copied = j.jenkins.copy(direct, "copied");
+        assertEquals(ImmutableSet.of("copied", "renamed", "subtree"), index.getJobs(RES1));
+        copied.delete();
+        subtree.delete();
+        assertEquals(ImmutableSet.of("renamed"), index.getJobs(RES1));
+
+        assertNotNull(runJob(direct));
+        assertEquals(1, index.getImpact(RES1).getQueued());
+        String json = j.createWebClient().goTo("gating/impact?resource=" + RES1, "application/json").getWebResponse().getContentAsString();
+        assertThat(json, containsString("\"name\":\"renamed\""));
+        assertThat(json, containsString("\"queued\":1"));
+
+        j.jenkins.getQueue().clear();
+        direct.removeProperty(ResourceRequirementProperty.class);
+        assertEquals(ImmutableSet.of(), index.getJobs(RES1));
+        assertEquals(0, index.getImpact(RES1).getQueued());
+    }
+
+    @Test
+    public void indexJobsInvisibleToFirstUser() throws Exception {
+        FreeStyleProject visible = j.createFreeStyleProject("visible");
+        visible.addProperty(new ResourceRequirementProperty(Collections.singletonList(RES1)));
+        j.createFreeStyleProject("secret").addProperty(new ResourceRequirementProperty(Collections.singletonList(RES1)));
+
+        j.jenkins.setSecurityRealm(j.createDummySecurityRealm());
+        j.jenkins.setAuthorizationStrategy(new MockAuthorizationStrategy()
+                .grant(Jenkins.READ, Item.CONFIGURE).everywhere().to("alice")
+                .grant(Item.READ).onItems(visible).to("alice")
+        );
+
+        // Index built by the first use, from a user that cannot see all the gated jobs
+        String json = j.createWebClient().login("alice").goTo("gating/impact?resource=" + RES1, "application/json").getWebResponse().getContentAsString();
+        assertThat(json, containsString("\"name\":\"visible\""));
+        assertThat(json, not(containsString("secret")));
+
+        assertEquals(ImmutableSet.of("secret", "visible"), GatedJobIndex.get().getJobs(RES1));
+    }
+
+    @Test
+    public void blockForPlannedMaintenance() throws Exception {
+        Utils.setStatus(snapshot(RES1, TestStatus.OK, RES2, TestStatus.OK));
+        GatingMetrics gm = GatingMetrics.get();
+        MetricsProvider provider = j.jenkins.getExtensionList(MetricsProvider.class).get(Provider.class);
+
+        long now = System.currentTimeMillis();
+        gm.updateMaintenance(provider, "statuspage", asList(
+                new MaintenanceWindow(RES1, new Date(now - 1000), new Date(now + 600_000), "Upgrade"),
+                new MaintenanceWindow(RES2, new Date(now + 60_000), new Date(now + 120_000), null)
+        ));
+        assertEquals(2, gm.getMaintenanceWindows().size());
+
+        // Ongoing window blocks, upcoming one blocks only work estimated to run into it
+        MaintenanceSchedule schedule = gm.getMaintenance();
+        assertThat(schedule.evaluate(Collections.singletonList("statuspage/pageA/*"), 0).getShortDescription(), containsString(RES1 + " is in planned maintenance until"));
+        assertNull(schedule.evaluate(Collections.singletonList(RES2), 30_000));
+        assertThat(schedule.evaluate(Collections.singletonList(RES2), 90_000).getShortDescription(), containsString(RES2 + " has planned maintenance from"));
+
+        FreeStyleProject p = j.createFreeStyleProject();
+        p.addProperty(new ResourceRequirementProperty(Collections.singletonList(RES1)));
+        Queue.Item item = runJob(p);
+        assertThat(item.getCauseOfBlockage().getShortDescription(), containsString("planned maintenance"));
+        j.createWebClient().goTo("gating");
+
+        // Started once the window is withdrawn
+        gm.updateMaintenance(provider, "statuspage", Collections.singletonList(
+                new MaintenanceWindow(RES2, new Date(now + 60_000), new Date(now + 120_000), null)
+        ));
+        j.waitUntilNoActivity();
+        assertNotNull(p.getLastBuild());
+        assertEquals(1, gm.getMaintenanceWindows().size());
+
+        assertThrows(IllegalArgumentException.class, () -> new MaintenanceWindow(RES1, new Date(now), new Date(now), null));
+        assertThrows(IllegalArgumentException.class, () -> gm.updateMaintenance(provider, "statuspage", Collections.singletonList(
+                new MaintenanceWindow("other/resource", new Date(now), new Date(now + 1000), null)
+        )));
+        gm.updateMaintenance(provider, "statuspage", Collections.emptyList());
+        assertEquals(0, gm.getMaintenanceWindows().size());
+    }
+
+    @Test
+    public void holdBuildsEstimatedToRunIntoMaintenance() throws Exception {
+        Utils.setStatus(snapshot(RES2, TestStatus.OK));
+        GatingMetrics gm = GatingMetrics.get();
+        MetricsProvider provider = j.jenkins.getExtensionList(MetricsProvider.class).get(Provider.class);
+
+        FreeStyleProject p = j.createFreeStyleProject();
+        p.addProperty(new ResourceRequirementProperty(Collections.singletonList(RES2)));
+        FreeStyleBuild previous = j.buildAndAssertSuccess(p);
+        Field duration = Run.class.getDeclaredField("duration");
+        duration.setAccessible(true);
+        duration.setLong(previous, 120_000);
+        assertEquals(120_000, p.getEstimatedDuration());
+
+        long now = System.currentTimeMillis();
+        gm.updateMaintenance(provider, "statuspage", Collections.singletonList(
+                new MaintenanceWindow(RES2, new Date(now + 60_000), new Date(now + 600_000), null)
+        ));
+
+        p.scheduleBuild2(0);
+        Queue queue = j.jenkins.getQueue();
+        Utils.await(() -> queue.getItem(p) != null && queue.getItem(p).getCauseOfBlockage() instanceof ResourceBlockage);
+        assertThat(queue.getItem(p).getCauseOfBlockage().getShortDescription(), containsString(
+                RES2 + " has planned maintenance from " + Instant.ofEpochMilli(now + 60_000) + ", before the build is estimated to finish"
+        ));
+
+        // Started once the window is withdrawn
+        gm.updateMaintenance(provider, "statuspage", Collections.emptyList());
+        j.waitUntilNoActivity();
+        assertEquals(2, p.getLastBuild().getNumber());
+    }
+
+    @Test
+    public void simulateOutage() throws Exception {
+        Utils.setStatus(snapshot(RES1, TestStatus.OK, RES2, TestStatus.BELLY_UP));
+        j.createFreeStyleProject("direct").addProperty(new ResourceRequirementProperty(Collections.singletonList(RES1)));
+        j.createFreeStyleProject("subtree").addProperty(new ResourceRequirementProperty(Collections.singletonList("statuspage/pageA/*")));
+        FreeStyleProject down = j.createFreeStyleProject("down");
+        down.addProperty(new ResourceRequirementProperty(Collections.singletonList(RES2)));
+        assertNotNull(runJob(down));
+
+        GatingSimulation.Report report = GatingSimulation.simulate(Collections.singletonMap(RES1, ResourceStatus.Category.DOWN));
+        List<String> jobs = new ArrayList<>();
+        for (GatingSimulation.Outcome outcome : report.getJobs()) {
+            jobs.add(outcome.getName() + (outcome.isBlockedNow() ? " already" : ""));
+        }
+        assertEquals(asList("direct", "down already", "subtree"), jobs);
+        assertEquals(1, report.getQueued().size());
+        assertEquals(0, report.getPaused().size());
+
+        // Live state untouched
+        assertEquals(ResourceStatus.Category.UP, GatingMetrics.get().getRollup("statuspage/pageA").getCategory());
+
+        String json = j.createWebClient().goTo("gating/simulate?up=" + RES2.replace(" ", "%20").replace("#", "%23"), "application/json").getWebResponse().getContentAsString();
+        assertThat(json, containsString("\"jobs\":[]"));
+        assertThat(json, containsString("\"queued\":[]"));
+
+        // Evaluated the way the dispatcher does, including the planned maintenance
+        long now = System.currentTimeMillis();
+        GatingMetrics.get().updateMaintenance(
+                j.jenkins.getExtensionList(MetricsProvider.class).get(Provider.class), "statuspage",
+                Collections.singletonList(new MaintenanceWindow(RES2, new Date(now - 1000), new Date(now + 60_000), "Upgrade"))
+        );
+        report = GatingSimulation.simulate(Collections.singletonMap(RES2, ResourceStatus.Category.UP));
+        assertEquals(1, report.getJobs().size());
+        assertEquals("down", report.getJobs().get(0).getName());
+        j.jenkins.getQueue().clear();
+    }
+
+    @Test
+    public void journalTimeWaited() throws Exception {
+        FreeStyleProject unblocked = j.createFreeStyleProject("unblocked");
+        unblocked.addProperty(new ResourceRequirementProperty(Collections.singletonList(RES1)));
+        FreeStyleProject cancelled = j.createFreeStyleProject("cancelled");
+        cancelled.addProperty(new ResourceRequirementProperty(Collections.singletonList(RES2)));
+
+        assertNotNull(runJob(unblocked));
+        assertNotNull(runJob(cancelled));
+        Thread.sleep(100);
+
+        Utils.setStatus(Utils.snapshot(RES1, UP));
+        j.jenkins.getQueue().clear();
+        j.waitUntilNoActivity();
+
+        Utils.await(() -> {
+            GatingJournal.Report written = GatingJournal.get().getReport();
+            return written.getWaitedByJob().size() == 2 && written.getWaiting() == 0;
+        });
+        GatingJournal.Report report = GatingJournal.get().getReport();
+        assertTrue(report.getWaitedByJob().get("unblocked") >= 100);
+        assertTrue(report.getWaitedByResource().get(RES1) >= 100);
+        assertTrue(report.getWaitedByResource().containsKey(RES2));
+
+        // Appended to the latest segment when reopened
+        int entries = GatingJournal.get().read().size();
+        GatingJournal.shutdown();
+        assertNotNull(runJob(cancelled));
+        Utils.await(() -> GatingJournal.get().read().size() > entries);
+        assertEquals(1, GatingJournal.get().getReport().getWaiting());
+
+        // Waits are closed when started again
+        GatingJournal.shutdown();
+        GatingJournal.get().closeOpenWaits();
+        assertEquals(0, GatingJournal.get().getReport().getWaiting());
+        j.jenkins.getQueue().clear();
+
+        j.createWebClient().goTo("gating/journal");
+    }
+
     @Test
     public void configRoundtrip() throws Exception {
         FreeStyleProject p = j.createFreeStyleProject();
@@ -184,6 +494,10 @@ public class FreestyleGatingTest {
 
         p.addProperty(reqs);
 
+        return runJob(p);
+    }
+
+    private Queue.Item runJob(FreeStyleProject p) throws InterruptedException {
         p.scheduleBuild2(0);
 
         Queue queue = j.getInstance().getQueue();
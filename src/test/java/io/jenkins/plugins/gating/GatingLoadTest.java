@@ -0,0 +1,263 @@
+/*
+ * Copyright (c) Red Hat, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.jenkins.plugins.gating;
+
+import hudson.model.FreeStyleProject;
+import hudson.model.Queue;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+import hudson.model.queue.QueueListener;
+import org.jenkinsci.plugins.workflow.cps.CpsFlowDefinition;
+import org.jenkinsci.plugins.workflow.job.WorkflowJob;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.TestExtension;
+
+import javax.annotation.Nonnull;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Queue throughput under churning resources, with many gated freestyle jobs and paused pipelines.
+ *
+ * Skipped unless run with {@code -Dgating.loadtest=true}. Tunable by {@code gating.loadtest.jobs},
+ * {@code .pipelines}, {@code .resources}, {@code .flipsPerSecond}, {@code .seed} and {@code .timeout} (minutes).
+ * The same seed produces the same jobs, requirements and sequence of status flips, so runs against different builds
+ * of the plugin are comparable.
+ */
+public class GatingLoadTest {
+    private static final String PREFIX = "gating.loadtest";
+    private static final String LABEL = "churn";
+
+    @Rule public final JenkinsRule j = new JenkinsRule();
+
+    @Test
+    public void throughput() throws Exception {
+        assumeTrue("Load test not requested", Boolean.getBoolean(PREFIX));
+
+        int jobs = Integer.getInteger(PREFIX + ".jobs", 2000);
+        int pipelines = Integer.getInteger(PREFIX + ".pipelines", 500);
+        int resources = Integer.getInteger(PREFIX + ".resources", 200);
+        int flipsPerSecond = Integer.getInteger(PREFIX + ".flipsPerSecond", 50);
+        long seed = Long.getLong(PREFIX + ".seed", 42);
+        int timeout = Integer.getInteger(PREFIX + ".timeout", 15);
+        System.out.printf("Gating load test: %d jobs, %d pipelines, %d resources, %d flips/s, seed %d%n",
+                jobs, pipelines, resources, flipsPerSecond, seed
+        );
+
+        j.jenkins.setNumExecutors(16);
+        Random random = new Random(seed);
+        ChurnProvider provider = j.jenkins.getExtensionList(MetricsProvider.class).get(ChurnProvider.class);
+
+        // Roughly half of the resources down at the start
+        ResourceStatus.Category[] statuses = new ResourceStatus.Category[resources];
+        for (int i = 0; i < resources; i++) {
+            statuses[i] = random.nextBoolean() ? ResourceStatus.Category.UP : ResourceStatus.Category.DOWN;
+        }
+        provider.report(statuses);
+
+        List<FreeStyleProject> freestyles = new ArrayList<>(jobs);
+        for (int i = 0; i < jobs; i++) {
+            FreeStyleProject p = j.createFreeStyleProject("job-" + i);
+            List<String> required = new ArrayList<>();
+            for (int r = random.nextInt(3); r >= 0; r--) {
+                required.add(resourceName(random.nextInt(resources)));
+            }
+            p.addProperty(new ResourceRequirementProperty(required));
+            freestyles.add(p);
+        }
+        List<WorkflowJob> workflows = new ArrayList<>(pipelines);
+        for (int i = 0; i < pipelines; i++) {
+            WorkflowJob p = j.createProject(WorkflowJob.class, "pipeline-" + i);
+            p.setDefinition(new CpsFlowDefinition(
+                    "requireResources(resources: ['" + resourceName(random.nextInt(resources)) + "']) { echo 'passed' }",
+                    true
+            ));
+            workflows.add(p);
+        }
+
+        Stats stats = j.jenkins.getExtensionList(RunListener.class).get(Stats.class);
+        long cpuBefore = processCpuTime();
+        long allocatedBefore = allocatedBytes();
+        long started = System.nanoTime();
+
+        Thread churn = new Thread(() -> churn(provider, statuses, new Random(seed), flipsPerSecond), "gating-churn");
+        churn.start();
+        try {
+            for (FreeStyleProject p : freestyles) {
+                p.scheduleBuild2(0);
+            }
+            for (WorkflowJob p : workflows) {
+                p.scheduleBuild2(0);
+            }
+
+            j.waitUntilNoActivityUpTo((int) TimeUnit.MINUTES.toMillis(timeout));
+        } finally {
+            churn.interrupt();
+            churn.join();
+        }
+
+        long elapsed = System.nanoTime() - started;
+        System.out.printf("Completed %d builds in %d ms%n", stats.queueLatency.size(), TimeUnit.NANOSECONDS.toMillis(elapsed));
+        report("Queue latency", stats.queueLatency.values());
+        report("Time to unblock", stats.timeToUnblock);
+        System.out.printf("Process CPU time: %d ms%n", TimeUnit.NANOSECONDS.toMillis(processCpuTime() - cpuBefore));
+        System.out.printf("Allocated by live threads: %d MB%n", (allocatedBytes() - allocatedBefore) >> 20);
+    }
+
+    /**
+     * Flip random resources, favouring UP so all the builds eventually pass.
+     */
+    private static void churn(ChurnProvider provider, ResourceStatus.Category[] statuses, Random random, int flipsPerSecond) {
+        long period = TimeUnit.SECONDS.toNanos(1) / Math.max(1, flipsPerSecond);
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                int i = random.nextInt(statuses.length);
+                statuses[i] = random.nextInt(4) == 0 ? ResourceStatus.Category.DOWN : ResourceStatus.Category.UP;
+                provider.report(statuses);
+                TimeUnit.NANOSECONDS.sleep(period);
+            }
+        } catch (InterruptedException ex) {
+            // Done
+        }
+    }
+
+    private static String resourceName(int i) {
+        return LABEL + "/resource-" + i;
+    }
+
+    private static void report(String title, Iterable<Long> samples) {
+        List<Long> sorted = new ArrayList<>();
+        samples.forEach(sorted::add);
+        if (sorted.isEmpty()) {
+            System.out.printf("%s: no samples%n", title);
+            return;
+        }
+        Collections.sort(sorted);
+        System.out.printf("%s (ms, %d samples): p50 %d, p90 %d, p99 %d, max %d%n", title, sorted.size(),
+                percentile(sorted, 50), percentile(sorted, 90), percentile(sorted, 99), sorted.get(sorted.size() - 1)
+        );
+    }
+
+    private static long percentile(List<Long> sorted, int percentile) {
+        int index = (int) Math.ceil(percentile / 100.0 * sorted.size()) - 1;
+        return sorted.get(Math.max(0, index));
+    }
+
+    private static long processCpuTime() {
+        return ManagementFactory.getOperatingSystemMXBean() instanceof com.sun.management.OperatingSystemMXBean os
+                ? os.getProcessCpuTime()
+                : -1
+        ;
+    }
+
+    /**
+     * Bytes allocated by threads alive now. Threads that terminated in between are not accounted for.
+     */
+    private static long allocatedBytes() {
+        if (!(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean threads)) return -1;
+
+        long sum = 0;
+        for (long allocated : threads.getThreadAllocatedBytes(threads.getAllThreadIds())) {
+            if (allocated > 0) {
+                sum += allocated;
+            }
+        }
+        return sum;
+    }
+
+    @TestExtension("throughput")
+    public static final class ChurnProvider implements MetricsProvider {
+        @Override public @Nonnull Set<String> getLabels() {
+            return Collections.singleton(LABEL);
+        }
+
+        private void report(ResourceStatus.Category[] statuses) {
+            Map<String, MetricsSnapshot.Resource> resources = new HashMap<>();
+            for (int i = 0; i < statuses.length; i++) {
+                String name = resourceName(i);
+                resources.put(name, new MetricsSnapshot.Resource(name, statuses[i]));
+            }
+            GatingMetrics.get().submit(new MetricsSnapshot(this, LABEL, resources));
+        }
+    }
+
+    /**
+     * Record queue latency of builds and time to unblock of all waiters.
+     */
+    @TestExtension("throughput")
+    public static final class Stats extends RunListener<Run<?, ?>> {
+        private final Map<Long, Long> enteredQueue = new ConcurrentHashMap<>();
+        private final Map<Long, Long> queueLatency = new ConcurrentHashMap<>();
+        private final Map<String, Long> blockedSince = new ConcurrentHashMap<>();
+        private final List<Long> timeToUnblock = Collections.synchronizedList(new ArrayList<>());
+
+        @Override
+        public void onStarted(Run<?, ?> run, TaskListener listener) {
+            Long entered = enteredQueue.remove(run.getQueueId());
+            if (entered != null) {
+                queueLatency.put(run.getQueueId(), run.getStartTimeInMillis() - entered);
+            }
+        }
+
+        @TestExtension("throughput")
+        public static final class QueueListenerImpl extends QueueListener {
+            @Override
+            public void onEnterWaiting(Queue.WaitingItem wi) {
+                stats().enteredQueue.putIfAbsent(wi.getId(), wi.getInQueueSince());
+            }
+        }
+
+        // Notified on the dispatcher thread, so the times are those the waiters were created with
+        @TestExtension("throughput")
+        public static final class GatingListenerImpl extends GatingListener {
+            @Override
+            public void onBlocked(@Nonnull Waiter waiter, @Nonnull ResourceBlockage blockage) {
+                stats().blockedSince.putIfAbsent(waiter.getId(), waiter.getTimestamp());
+            }
+
+            @Override
+            public void onUnblocked(@Nonnull Waiter waiter) {
+                Long since = stats().blockedSince.remove(waiter.getId());
+                if (since != null) {
+                    stats().timeToUnblock.add(waiter.getTimestamp() - since);
+                }
+            }
+        }
+
+        private static Stats stats() {
+            return RunListener.all().get(Stats.class);
+        }
+    }
+}
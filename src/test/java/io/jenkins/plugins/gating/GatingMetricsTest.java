@@ -21,8 +21,14 @@
  */
 package io.jenkins.plugins.gating;
 
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import hudson.util.FormValidation;
+import hudson.util.Secret;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.htmlunit.WebRequest;
 import org.junit.Rule;
 import org.junit.Test;
 import org.jvnet.hudson.test.JenkinsRule;
@@ -30,9 +36,18 @@ import org.jvnet.hudson.test.TestExtension;
 import org.jvnet.hudson.test.WithoutJenkins;
 
 import javax.annotation.Nonnull;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -92,6 +107,59 @@ public class GatingMetricsTest {
         assertThat(text, containsString("have a colliding sourceLabel bb. Ignoring metrics update."));
     }
 
+    @Test
+    public void rejectReportsForLabelsClaimedByOthers() {
+        GatingMetrics gm = get();
+
+        MetricsProvider pa = lookupSingleton(AMetricsProvider.class);
+        MetricsProvider pb = lookupSingleton(BMetricsProvider.class);
+
+        // Rejected even before the owner reported anything
+        gm.update(Utils.snapshot(pb, "a/a", ResourceStatus.Category.DOWN));
+        gm.reportError(new MetricsSnapshot.Error(pb, "a", "problem", null));
+        assertThat(gm.getMetrics(), anEmptyMap());
+        assertThat(gm.getErrors(), anEmptyMap());
+
+        gm.update(Utils.snapshot(pa, "a/a", ResourceStatus.Category.UP));
+        assertSame(pa, gm.getMetrics().get("a").getProvider());
+
+        // Labels of reconfigured providers are picked up
+        assertNull(gm.getProviderRegistry().get().ownerOf("pushed"));
+        GatingPushConfiguration.get().setSources(Collections.singletonList(
+                new GatingPushConfiguration.PushSource("pushed", Secret.fromString("token"))
+        ));
+        assertSame(GatingPushConfiguration.get(), gm.getProviderRegistry().get().ownerOf("pushed"));
+        gm.update(Utils.snapshot(pa, "pushed/a", ResourceStatus.Category.UP));
+        assertNull(gm.getMetrics().get("pushed"));
+    }
+
+    @Test
+    public void keepInvalidationWhileBuildingClaims() {
+        ProviderRegistry registry = get().getProviderRegistry();
+        InvalidatingProvider provider = lookupSingleton(InvalidatingProvider.class);
+
+        // Saved while the labels are collected
+        provider.invalidate = true;
+        registry.invalidate();
+        ProviderRegistry.Claims claims = registry.get();
+        assertFalse(provider.invalidate);
+        assertNotSame(claims, registry.get());
+    }
+
+    @TestExtension("keepInvalidationWhileBuildingClaims")
+    public static final class InvalidatingProvider implements MetricsProvider {
+        private volatile boolean invalidate;
+
+        @Override
+        public @Nonnull Set<String> getLabels() {
+            if (invalidate) {
+                invalidate = false;
+                get().getProviderRegistry().invalidate();
+            }
+            return Collections.singleton("invalidating");
+        }
+    }
+
     @Test
     public void reportErrorsWithProviderMismatch() {
         GatingMetrics gm = get();
@@ -115,6 +183,65 @@ public class GatingMetricsTest {
         assertThat(gm.getMetrics(), anEmptyMap());
     }
 
+    @Test
+    public void aggregateRepeatedErrors() {
+        GatingMetrics gm = get();
+        MetricsProvider pa = lookupSingleton(AMetricsProvider.class);
+
+        MetricsSnapshot.Error first = new MetricsSnapshot.Error(pa, "a", "problem 1", null, false);
+        assertEquals(0, first.getStackTrace().length);
+        gm.reportError(first);
+        gm.reportError(new MetricsSnapshot.Error(pa, "a", "problem 2", null, false));
+        gm.reportError(new MetricsSnapshot.Error(pa, "a", "problem 3", null));
+
+        ErrorRecord record = gm.getErrorRecords().get("a");
+        assertEquals(3, record.getCount());
+        assertEquals("problem 3", record.getLatest().getMessage());
+        assertEquals(first.getCreated(), record.getFirstSeen());
+        assertFalse(record.getLastSeen().before(record.getFirstSeen()));
+        assertFalse(record.isLogged());
+
+        // Successful update starts over
+        gm.update(Utils.snapshot(pa, "a/a", ResourceStatus.Category.UP));
+        assertThat(gm.getErrorRecords(), anEmptyMap());
+        gm.reportError(new MetricsSnapshot.Error(pa, "a", "problem 4", null, false));
+        assertEquals(1, gm.getErrorRecords().get("a").getCount());
+        assertTrue(gm.getErrorRecords().get("a").isLogged());
+    }
+
+    @Test
+    public void rejectSnapshotsOverLimits() {
+        GatingMetrics gm = get();
+        MetricsProvider pa = lookupSingleton(AMetricsProvider.class);
+        gm.update(Utils.snapshot(pa, "a/a", ResourceStatus.Category.UP));
+        MetricsSnapshot accepted = gm.getMetrics().get("a");
+        assertTrue(accepted.getEstimatedSize() > 0);
+
+        String maxResources = GatingMetrics.class.getName() + ".maxResources.a";
+        String maxBytes = GatingMetrics.class.getName() + ".maxBytes.a";
+        try {
+            System.setProperty(maxResources, "1");
+            gm.update(Utils.snapshot(pa, "a/a", ResourceStatus.Category.DOWN, "a/b", ResourceStatus.Category.UP));
+            assertThat(gm.getErrors().get("a").getMessage(), containsString("2 resources exceed the limit of 1"));
+            assertSame(accepted, gm.getMetrics().get("a"));
+
+            System.clearProperty(maxResources);
+            System.setProperty(maxBytes, "100");
+            Map<String, MetricsSnapshot.Resource> huge = new HashMap<>();
+            huge.put("a/a", new MetricsSnapshot.Resource("a/a", ResourceStatus.Category.DOWN, "x".repeat(1000)));
+            gm.update(Utils.snapshot(pa, huge));
+            assertThat(gm.getErrors().get("a").getMessage(), containsString("Snapshot rejected, estimated"));
+            assertSame(accepted, gm.getMetrics().get("a"));
+        } finally {
+            System.clearProperty(maxResources);
+            System.clearProperty(maxBytes);
+        }
+
+        // Other sources are not limited
+        gm.update(Utils.snapshot(lookupSingleton(BMetricsProvider.class), "b/a", ResourceStatus.Category.UP));
+        assertTrue(gm.getMetrics().containsKey("b"));
+    }
+
     @Test
     public void updateWithProviderMismatch() {
         GatingMetrics gm = get();
@@ -134,6 +261,49 @@ public class GatingMetricsTest {
         assertThat(gm.getErrors(), anEmptyMap());
     }
 
+    @Test
+    public void submitCoalescesPerSource() throws Exception {
+        GatingMetrics gm = get();
+
+        MetricsProvider pa = lookupSingleton(AMetricsProvider.class);
+
+        for (ResourceStatus.Category category : ResourceStatus.Category.values()) {
+            assertTrue(gm.submit(snapshot(pa, "a/a", category)));
+        }
+        MetricsSnapshot latest = snapshot(pa, "a/a", ResourceStatus.Category.UP);
+        assertTrue(gm.submit(latest));
+        assertTrue(gm.submitError(new MetricsSnapshot.Error(pa, "a", "problem", null)));
+
+        Utils.await(() -> !gm.getErrors().isEmpty());
+
+        // Error does not discard the snapshot submitted before it
+        assertEquals(latest.getStatuses(), gm.getMetrics().get("a").getStatuses());
+        assertEquals("problem", gm.getErrors().get("a").getMessage());
+    }
+
+    @Test
+    public void updateDeduplicatesUnchangedResources() {
+        GatingMetrics gm = get();
+
+        MetricsProvider pa = lookupSingleton(AMetricsProvider.class);
+
+        gm.update(snapshot(pa, "a/a", ResourceStatus.Category.UP, "a/b", TestStatus.DECENT));
+        MetricsSnapshot first = gm.getMetrics().get("a");
+        Map<String, MetricsSnapshot.Resource> resources = gm.getStatusOfAllResources();
+
+        gm.update(snapshot(pa, "a/a", ResourceStatus.Category.UP, "a/b", TestStatus.DECENT));
+        MetricsSnapshot second = gm.getMetrics().get("a");
+        assertTrue(second.hasSameResources(first));
+        assertSame(resources, gm.getStatusOfAllResources());
+
+        gm.update(snapshot(pa, "a/a", ResourceStatus.Category.UP, "a/b", TestStatus.OK));
+        MetricsSnapshot third = gm.getMetrics().get("a");
+        assertFalse(third.hasSameResources(second));
+        assertSame(second.nameAt(0), third.nameAt(0));
+        assertSame(second.descriptionAt(1), third.descriptionAt(1));
+        assertEquals(TestStatus.OK, gm.getStatusOfAllResources().get("a/b").getStatus());
+    }
+
     @Test
     public void ui() throws Exception {
 
@@ -173,6 +343,186 @@ public class GatingMetricsTest {
         assertThat(gating, containsString("RuntimeException: Just error"));
     }
 
+    @Test
+    public void rollupResourceTree() {
+        GatingMetrics gm = get();
+        MetricsProvider pa = lookupSingleton(AMetricsProvider.class);
+
+        Map<String, MetricsSnapshot.Resource> resources = new HashMap<>();
+        resources.put("a/r1/x", new MetricsSnapshot.Resource("a/r1/x", ResourceStatus.Category.UP));
+        resources.put("a/r1/y", new MetricsSnapshot.Resource("a/r1/y", TestStatus.OK));
+        resources.put("a/r2/z", new MetricsSnapshot.Resource("a/r2/z", ResourceStatus.Category.DOWN));
+        gm.update(new MetricsSnapshot(pa, "a", resources));
+
+        ResourceRollup source = gm.getRollup("a");
+        assertEquals(3, source.getTotal());
+        assertEquals(2, source.getCount(ResourceStatus.Category.UP));
+        assertEquals(ResourceStatus.Category.DOWN, source.getCategory());
+        assertEquals("1 DOWN, 2 UP", source.toString());
+        assertEquals(ResourceStatus.Category.UP, gm.getRollup("A/R1").getCategory());
+        assertNull(gm.getRollup("a/r3"));
+
+        ResourceRequirementProperty region = new ResourceRequirementProperty(Arrays.asList("a/r1/*"));
+        assertNull(region.evaluate(gm));
+        ResourceRequirementProperty missing = new ResourceRequirementProperty(Arrays.asList("a/r3/*"));
+        assertThat(missing.evaluate(gm).getShortDescription(), containsString("a/r3/* is UNKNOWN"));
+
+        // Incremental changes
+        resources.remove("a/r2/z");
+        resources.put("a/r1/y", new MetricsSnapshot.Resource("a/r1/y", TestStatus.DECENT));
+        resources.put("a/r1/w", new MetricsSnapshot.Resource("a/r1/w", ResourceStatus.Category.UP));
+        gm.update(new MetricsSnapshot(pa, "a", resources));
+
+        assertNull(gm.getRollup("a/r2"));
+        ResourceRollup r1 = gm.getRollup("a/r1");
+        assertEquals(3, r1.getTotal());
+        assertEquals(1, r1.getCount(ResourceStatus.Category.DEGRADED));
+        assertEquals(3, gm.getRollup("a").getTotal());
+        assertThat(region.evaluate(gm).getShortDescription(), containsString("a/r1/* is 1 DEGRADED, 2 UP"));
+    }
+
+    @Test
+    public void streamResourceChanges() throws Exception {
+        GatingMetrics gm = get();
+        GatingEventStream stream = GatingEventStream.get();
+        MetricsProvider pa = lookupSingleton(AMetricsProvider.class);
+
+        long since = stream.getSequence();
+        gm.update(Utils.snapshot(pa, "a/a", ResourceStatus.Category.UP));
+        // Changes not dispatched yet are merged
+        Utils.await(() -> stream.eventsSince(since).size() == 2);
+        gm.update(Utils.snapshot(pa, "a/a", ResourceStatus.Category.DOWN));
+        Utils.await(() -> stream.eventsSince(since).size() == 4);
+
+        List<GatingEventStream.Event> events = stream.eventsSince(since);
+
+        assertEquals("resource", events.get(2).getType());
+        assertThat(events.get(2).getData(), containsString("\"status\":\"DOWN\""));
+        assertEquals("rollup", events.get(3).getType());
+        assertThat(events.get(3).getData(), containsString("1 resources: 1 DOWN"));
+
+        // Nothing new to catch up with
+        assertEquals(Collections.emptyList(), stream.eventsSince(stream.getSequence()));
+    }
+
+    @Test
+    public void coalesceResourceChanges() throws Exception {
+        GatingMetrics gm = get();
+        MetricsProvider pa = lookupSingleton(AMetricsProvider.class);
+        BlockingListener listener = lookupSingleton(BlockingListener.class);
+
+        gm.update(Utils.snapshot(pa, "a/a", ResourceStatus.Category.UP));
+        assertTrue(listener.entered.await(10, TimeUnit.SECONDS));
+
+        // Merged while the listener is busy, no net change
+        gm.update(Utils.snapshot(pa, "a/a", ResourceStatus.Category.DOWN));
+        gm.update(Utils.snapshot(pa, "a/a", ResourceStatus.Category.UP));
+        listener.release.countDown();
+
+        gm.update(Utils.snapshot(pa, "a/a", ResourceStatus.Category.DEGRADED));
+        Utils.await(() -> listener.events.size() == 2);
+        assertEquals(Arrays.asList("[a/a: null -> UP]", "[a/a: UP -> DEGRADED]"), listener.events);
+    }
+
+    @TestExtension("coalesceResourceChanges")
+    public static final class BlockingListener extends GatingListener {
+        private final CountDownLatch entered = new CountDownLatch(1);
+        private final CountDownLatch release = new CountDownLatch(1);
+        private final List<String> events = Collections.synchronizedList(new ArrayList<>());
+
+        @Override
+        public void onResourcesChanged(@Nonnull String sourceLabel, @Nonnull List<Transition> transitions) {
+            events.add(transitions.toString());
+            entered.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException ex) {
+                throw new AssertionError(ex);
+            }
+        }
+    }
+
+    @Test
+    public void reloadStreamThatCannotCatchUp() throws Exception {
+        GatingEventStream stream = GatingEventStream.get();
+        JenkinsRule.WebClient wc = j.createWebClient();
+
+        // Rendered before restart
+        String body = wc.goTo("gating/events?since=42", "text/event-stream").getWebResponse().getContentAsString();
+        assertThat(body, containsString("event: reload"));
+
+        // Reconnecting with an id from ahead of this boot
+        WebRequest request = new WebRequest(new URL(j.getURL(), "gating/events"));
+        request.setAdditionalHeader("Last-Event-ID", String.valueOf(stream.getSequence() + 1000));
+        body = wc.loadWebResponse(request).getContentAsString();
+        assertThat(body, containsString("event: reload"));
+    }
+
+    @Test
+    public void recordFlightRecorderEvents() throws Exception {
+        GatingMetrics gm = get();
+        MetricsProvider pa = lookupSingleton(AMetricsProvider.class);
+
+        Path dump = Files.createTempFile("gating", ".jfr");
+        try (Recording recording = new Recording()) {
+            recording.enable("io.jenkins.plugins.gating.Update");
+            recording.enable("io.jenkins.plugins.gating.ResourceMapRebuild");
+            recording.start();
+
+            gm.update(Utils.snapshot(pa, "a/a", ResourceStatus.Category.UP, "a/b", ResourceStatus.Category.UP));
+            gm.update(Utils.snapshot(pa, "a/a", ResourceStatus.Category.UP, "a/b", ResourceStatus.Category.DOWN));
+            gm.getStatusOfAllResources().entrySet();
+
+            recording.stop();
+            recording.dump(dump);
+        }
+
+        List<RecordedEvent> events = RecordingFile.readAllEvents(dump);
+        Files.delete(dump);
+
+        List<RecordedEvent> updates = events.stream()
+                .filter(e -> e.getEventType().getName().equals("io.jenkins.plugins.gating.Update"))
+                .collect(Collectors.toList());
+        assertEquals(2, updates.size());
+        assertEquals("a", updates.get(1).getString("source"));
+        assertEquals(2, updates.get(1).getInt("resources"));
+        assertEquals(1, updates.get(1).getInt("changed"));
+
+        assertTrue(events.stream().anyMatch(e -> e.getEventType().getName().equals("io.jenkins.plugins.gating.ResourceMapRebuild")
+                && e.getBoolean("merged")));
+    }
+
+    @Test
+    public void evaluateThresholds() {
+        GatingMetrics gm = get();
+        MetricsProvider pa = lookupSingleton(AMetricsProvider.class);
+
+        Map<String, MetricsSnapshot.Resource> resources = new HashMap<>();
+        resources.put("a/fast", new MetricsSnapshot.Resource("a/fast", TestStatus.DECENT, null, 5, ImmutableMap.of("latency", 120D)));
+        resources.put("a/slow", new MetricsSnapshot.Resource("a/slow", TestStatus.DECENT, null, 5, ImmutableMap.of("latency", 480D)));
+        gm.update(new MetricsSnapshot(pa, "a", resources));
+
+        ResourceRequirementProperty degraded = new ResourceRequirementProperty(Arrays.asList("a/fast"));
+        assertNotNull(degraded.evaluate(gm));
+
+        ResourceRequirementProperty fast = new ResourceRequirementProperty(Arrays.asList("a/fast"));
+        fast.setThresholds("a/fast:latency < 200\n\n");
+        assertNull(fast.evaluate(gm));
+
+        ResourceRequirementProperty slow = new ResourceRequirementProperty(Arrays.asList("a/fast"));
+        slow.setThresholds("a/fast:latency < 200\na/SLOW:latency <= 200\na/fast:errors == 0");
+        ResourceBlockage blockage = slow.evaluate(gm);
+        assertNotNull(blockage);
+        assertEquals(Arrays.asList("a/SLOW", "a/fast"), blockage.getResources());
+        assertThat(blockage.getShortDescription(), containsString("a/SLOW latency is 480.0, required <= 200.0"));
+        assertThat(blockage.getShortDescription(), containsString("a/fast does not report errors"));
+
+        assertThrows(IllegalArgumentException.class, () -> slow.setThresholds("a/fast latency < 200"));
+        assertThrows(IllegalArgumentException.class, () -> slow.setThresholds("fast:latency < 200"));
+        assertThrows(IllegalArgumentException.class, () -> slow.setThresholds("a/fast:latency ~ 200"));
+        assertThrows(IllegalArgumentException.class, () -> slow.setThresholds("a/fast:latency < 200ms"));
+    }
+
     public static class Provider implements MetricsProvider {
 
         private Set<String> labels;
@@ -0,0 +1,162 @@
+/*
+ * Copyright (c) Red Hat, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.jenkins.plugins.gating;
+
+import hudson.ExtensionList;
+import hudson.util.Secret;
+import org.htmlunit.HttpMethod;
+import org.htmlunit.WebRequest;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.WithoutJenkins;
+
+import java.io.StringReader;
+import java.net.URL;
+import java.util.Collections;
+import java.util.Map;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+public class GatingPushTest {
+
+    @Rule public final JenkinsRule j = new JenkinsRule();
+
+    @Test
+    public void pushDeltas() throws Exception {
+        configure();
+        GatingMetrics gm = GatingMetrics.get();
+
+        assertEquals(202, push("push", "Bearer s3cr3t", "",
+                "{\"resource\": \"push/a\", \"status\": \"UP\", \"description\": \"A\"}\n"
+                + "\n"
+                + "{\"resource\": \"push/b\", \"status\": \"DOWN\", \"capacity\": 2, \"metrics\": {\"latency\": 42}}\n"
+        ));
+        Utils.await(() -> gm.getMetrics().containsKey("push"));
+
+        assertEquals(202, push("push", null, "", "{\"resource\": \"push/a\", \"removed\": true}\n"
+                + "{\"resource\": \"push/c\", \"status\": \"DEGRADED\"}"
+        ));
+        Utils.await(() -> !gm.getStatusOfAllResources().containsKey("push/a"));
+
+        Map<String, MetricsSnapshot.Resource> statuses = gm.getMetrics().get("push").getStatuses();
+        assertEquals(2, statuses.size());
+        MetricsSnapshot.Resource b = statuses.get("push/b");
+        assertEquals(ResourceStatus.Category.DOWN, b.getStatus());
+        assertEquals(2, b.getCapacity());
+        assertEquals(Collections.singletonMap("latency", 42D), b.getMetrics());
+        assertEquals(ResourceStatus.Category.DEGRADED, statuses.get("push/c").getStatus());
+
+        assertEquals(202, push("push", null, "?replace=true", "{\"resource\": \"push/d\", \"status\": \"UP\"}"));
+        Utils.await(() -> gm.getStatusOfAllResources().containsKey("push/d"));
+        assertEquals(Collections.singleton("push/d"), gm.getMetrics().get("push").getStatuses().keySet());
+    }
+
+    @Test
+    public void rejectInvalidPushes() throws Exception {
+        configure();
+
+        String body = "{\"resource\": \"push/a\", \"status\": \"UP\"}";
+        assertEquals(403, push("push", "Bearer wrong", "", body));
+        assertEquals(403, push("nonexistent", "Bearer s3cr3t", "", body));
+        assertEquals(400, push("push", "Bearer s3cr3t", "", body + "\n{\"resource\": \"push/b\", \"status\": \"BROKEN\"}"));
+        assertEquals(400, push("push", "Bearer s3cr3t", "", "{\"resource\": \"other/a\", \"status\": \"UP\"}"));
+        assertEquals(400, push("push", "Bearer s3cr3t", "", "not json"));
+
+        // Nothing applied from malformed batches, the next delta applies to an empty source
+        assertEquals(202, push("push", "Bearer s3cr3t", "", "{\"resource\": \"push/c\", \"status\": \"UP\"}"));
+        GatingMetrics gm = GatingMetrics.get();
+        Utils.await(() -> gm.getMetrics().containsKey("push"));
+        assertEquals(Collections.singleton("push/c"), gm.getMetrics().get("push").getStatuses().keySet());
+    }
+
+    @Test
+    public void pushToLabelInAnyCase() throws Exception {
+        configure();
+        GatingPushEndpoint endpoint = ExtensionList.lookupSingleton(GatingPushEndpoint.class);
+
+        assertEquals(202, push("PUSH", "Bearer s3cr3t", "", "{\"resource\": \"push/a\", \"status\": \"UP\"}"));
+        Utils.await(() -> GatingMetrics.get().getMetrics().containsKey("push"));
+        assertEquals(Collections.singleton("push"), endpoint.getPushedLabels());
+
+        // Forgotten once the source is removed
+        GatingPushConfiguration.get().setSources(Collections.emptyList());
+        assertTrue(endpoint.getPushedLabels().isEmpty());
+    }
+
+    @Test @WithoutJenkins
+    public void enforceLimitsWhileParsing() throws Exception {
+        String line = "{\"resource\": \"push/%s\", \"status\": \"UP\"}\n";
+        String maxResources = GatingMetrics.class.getName() + ".maxResources.push";
+        String maxBytes = GatingMetrics.class.getName() + ".maxBytes.push";
+        try {
+            System.setProperty(maxResources, "2");
+            assertEquals(2, GatingPushEndpoint.parse(new StringReader(String.format(line + line, "a", "b")), "push").size());
+            IllegalArgumentException ex = assertThrows(IllegalArgumentException.class, () -> GatingPushEndpoint.parse(
+                    new StringReader(String.format(line + line + line, "a", "b", "c")), "push"
+            ));
+            assertThat(ex.getMessage(), containsString("Batch exceeds the limit of 2 resources"));
+
+            System.clearProperty(maxResources);
+            System.setProperty(maxBytes, "100");
+            ex = assertThrows(IllegalArgumentException.class, () -> GatingPushEndpoint.parse(
+                    new StringReader(String.format(line + line + line, "a", "b", "c")), "push"
+            ));
+            assertThat(ex.getMessage(), containsString("Batch exceeds the limit of 100 B"));
+        } finally {
+            System.clearProperty(maxResources);
+            System.clearProperty(maxBytes);
+        }
+
+        // Rejected before the line is read whole
+        IllegalArgumentException ex = assertThrows(IllegalArgumentException.class, () -> GatingPushEndpoint.parse(
+                new StringReader(String.format(line, "a") + "x".repeat(100_000)), "push"
+        ));
+        assertThat(ex.getMessage(), containsString("Line 2 exceeds the limit of"));
+    }
+
+    private void configure() {
+        GatingPushConfiguration.get().setSources(Collections.singletonList(
+                new GatingPushConfiguration.PushSource("push", Secret.fromString("s3cr3t"))
+        ));
+        assertTrue(GatingMetrics.get().getDetectedConflicts().isEmpty());
+    }
+
+    private int push(String label, String authorization, String query, String body) throws Exception {
+        WebRequest request = new WebRequest(new URL(j.getURL(), "gating-push/" + label + query), HttpMethod.POST);
+        if (authorization == null) {
+            request.setAdditionalHeader("X-Gating-Token", "s3cr3t");
+        } else {
+            request.setAdditionalHeader("Authorization", authorization);
+        }
+        request.setAdditionalHeader("Content-Type", "application/x-ndjson");
+        request.setRequestBody(body);
+
+        JenkinsRule.WebClient wc = j.createWebClient();
+        wc.setThrowExceptionOnFailingStatusCode(false);
+        return wc.getPage(request).getWebResponse().getStatusCode();
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright (c) Red Hat, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.jenkins.plugins.gating;
+
+import com.google.common.collect.ImmutableSet;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.TestExtension;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static hudson.ExtensionList.lookupSingleton;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class MetricsPollerTest {
+
+    @Rule public final JenkinsRule j = new JenkinsRule();
+
+    @Test
+    public void retryFailedFetch() throws Exception {
+        FlakyProvider provider = lookupSingleton(FlakyProvider.class);
+        lookupSingleton(MetricsPoller.class).reconcile();
+
+        GatingMetrics gm = GatingMetrics.get();
+        Utils.await(() -> gm.getMetrics().containsKey("flaky"));
+
+        assertThat(provider.fetches.get(), greaterThanOrEqualTo(2));
+        assertEquals(ResourceStatus.Category.UP, gm.getStatusOfAllResources().get("flaky/res").getStatus());
+        assertTrue(gm.getErrors().isEmpty());
+    }
+
+    @Test
+    public void reportTimeout() throws Exception {
+        lookupSingleton(MetricsPoller.class).reconcile();
+
+        GatingMetrics gm = GatingMetrics.get();
+        Utils.await(() -> gm.getErrors().containsKey("slow"));
+
+        MetricsSnapshot.Error error = gm.getErrors().get("slow");
+        assertSame(lookupSingleton(SlowProvider.class), error.getProvider());
+        assertThat(error.getCause(), instanceOf(TimeoutException.class));
+    }
+
+    @Test
+    public void pollOnDemand() throws Exception {
+        LazyProvider provider = lookupSingleton(LazyProvider.class);
+        MetricsPoller poller = lookupSingleton(MetricsPoller.class);
+        poller.reconcile();
+
+        Utils.await(() -> provider.fetches.get() > 0);
+
+        poller.demand(Collections.singletonList("lazy/res"));
+        Utils.await(() -> provider.demanded.contains("lazy/res"));
+
+        poller.demand(Collections.singletonList("unknown/res"));
+        assertFalse(provider.demanded.contains("unknown/res"));
+    }
+
+    @Test
+    public void keepPollingWhenFailureCannotBeReported() throws Exception {
+        InvalidProvider provider = lookupSingleton(InvalidProvider.class);
+        lookupSingleton(MetricsPoller.class).reconcile();
+
+        // The error for an invalid label is rejected, the polling goes on
+        Utils.await(() -> provider.fetches.get() >= 2);
+        assertTrue(GatingMetrics.get().getErrors().isEmpty());
+    }
+
+    @TestExtension("retryFailedFetch")
+    public static final class FlakyProvider implements PollableMetricsProvider {
+        private final AtomicInteger fetches = new AtomicInteger();
+
+        @Override public @Nonnull Set<String> getLabels() {
+            return ImmutableSet.of("flaky");
+        }
+
+        @Override public @Nonnull MetricsSnapshot fetch(@Nonnull String sourceLabel) throws Exception {
+            if (fetches.incrementAndGet() == 1) throw new IOException("Connection refused");
+
+            return Utils.snapshot(this, "flaky/res", ResourceStatus.Category.UP);
+        }
+
+        @Override public @Nonnull Duration getPollInterval(@Nonnull String sourceLabel) {
+            return Duration.ofMillis(100);
+        }
+    }
+
+    @TestExtension("pollOnDemand")
+    public static final class LazyProvider implements PollableMetricsProvider {
+        private final AtomicInteger fetches = new AtomicInteger();
+        private volatile Set<String> demanded = Collections.emptySet();
+
+        @Override public @Nonnull Set<String> getLabels() {
+            return ImmutableSet.of("lazy");
+        }
+
+        @Override public @Nonnull MetricsSnapshot fetch(@Nonnull String sourceLabel) {
+            fetches.incrementAndGet();
+            return Utils.snapshot(this, "lazy/res", ResourceStatus.Category.DOWN);
+        }
+
+        @Override public @Nonnull Duration getPollInterval(@Nonnull String sourceLabel) {
+            return Duration.ofMillis(100);
+        }
+
+        @Override public @Nonnull Duration getIdlePollInterval(@Nonnull String sourceLabel) {
+            return Duration.ofHours(1);
+        }
+
+        @Override public void demandChanged(@Nonnull String sourceLabel, @Nonnull Set<String> resources) {
+            demanded = resources;
+        }
+    }
+
+    @TestExtension("keepPollingWhenFailureCannotBeReported")
+    public static final class InvalidProvider implements PollableMetricsProvider {
+        private final AtomicInteger fetches = new AtomicInteger();
+
+        @Override public @Nonnull Set<String> getLabels() {
+            return ImmutableSet.of("AC/DC");
+        }
+
+        @Override public @Nonnull MetricsSnapshot fetch(@Nonnull String sourceLabel) throws Exception {
+            fetches.incrementAndGet();
+            throw new IOException("Connection refused");
+        }
+
+        @Override public @Nonnull Duration getPollInterval(@Nonnull String sourceLabel) {
+            return Duration.ofMillis(100);
+        }
+
+        @Override public int getMaxRetries(@Nonnull String sourceLabel) {
+            return 0;
+        }
+    }
+
+    @TestExtension("reportTimeout")
+    public static final class SlowProvider implements PollableMetricsProvider {
+        @Override public @Nonnull Set<String> getLabels() {
+            return ImmutableSet.of("slow");
+        }
+
+        @Override public @Nonnull MetricsSnapshot fetch(@Nonnull String sourceLabel) throws Exception {
+            Thread.sleep(Long.MAX_VALUE);
+            throw new AssertionError();
+        }
+
+        @Override public @Nonnull Duration getFetchTimeout(@Nonnull String sourceLabel) {
+            return Duration.ofMillis(100);
+        }
+
+        @Override public int getMaxRetries(@Nonnull String sourceLabel) {
+            return 0;
+        }
+    }
+}
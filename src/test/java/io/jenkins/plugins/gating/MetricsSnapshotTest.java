@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) Red Hat, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.jenkins.plugins.gating;
+
+import com.google.common.collect.ImmutableSet;
+import org.junit.Test;
+
+import javax.annotation.Nonnull;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static io.jenkins.plugins.gating.ResourceStatus.Category.DOWN;
+import static io.jenkins.plugins.gating.ResourceStatus.Category.UP;
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+public class MetricsSnapshotTest {
+
+    private static final MetricsProvider PROVIDER = new MetricsProvider() {
+        @Override public @Nonnull Set<String> getLabels() {
+            return ImmutableSet.of("src");
+        }
+    };
+
+    @Test
+    public void statusesView() {
+        Map<String, MetricsSnapshot.Resource> in = new HashMap<>();
+        put(in, new MetricsSnapshot.Resource("src/b", TestStatus.OK, "Described"));
+        put(in, new MetricsSnapshot.Resource("src/C", DOWN));
+        put(in, new MetricsSnapshot.Resource("src/a", UP, "  "));
+
+        Map<String, MetricsSnapshot.Resource> statuses = new MetricsSnapshot(PROVIDER, "src", in).getStatuses();
+
+        assertEquals(3, statuses.size());
+        assertEquals(asList("src/a", "src/b", "src/C"), new ArrayList<>(statuses.keySet()));
+        assertEquals(in, statuses);
+
+        assertSame(TestStatus.OK, statuses.get("src/b").getStatus());
+        assertEquals("Described", statuses.get("src/b").getDescription());
+        assertSame(DOWN, statuses.get("src/C").getStatus());
+        assertNull(statuses.get("src/a").getDescription());
+
+        // Lookups ignore case
+        assertTrue(statuses.containsKey("SRC/c"));
+        assertEquals(in.get("src/C"), statuses.get("src/c"));
+        assertFalse(statuses.containsKey("src/d"));
+        assertNull(statuses.get("src/d"));
+        assertNull(statuses.get(42));
+
+        assertThrows(UnsupportedOperationException.class, () -> statuses.put("src/d", in.get("src/a")));
+        assertThrows(UnsupportedOperationException.class, () -> statuses.remove("src/a"));
+    }
+
+    @Test
+    public void rejectInvalidResources() {
+        Map<String, MetricsSnapshot.Resource> foreign = new HashMap<>();
+        put(foreign, new MetricsSnapshot.Resource("other/a", UP));
+        assertThrows(IllegalArgumentException.class, () -> new MetricsSnapshot(PROVIDER, "src", foreign));
+
+        Map<String, MetricsSnapshot.Resource> misplaced = new HashMap<>();
+        misplaced.put("src/a", new MetricsSnapshot.Resource("src/b", UP));
+        assertThrows(IllegalArgumentException.class, () -> new MetricsSnapshot(PROVIDER, "src", misplaced));
+    }
+
+    @Test
+    public void buildFromStream() {
+        MetricsSnapshot.Resource a = new MetricsSnapshot.Resource("src/a", UP);
+        MetricsSnapshot.Resource b = new MetricsSnapshot.Resource("src/b", DOWN, "Down");
+        MetricsSnapshot.Resource upperB = new MetricsSnapshot.Resource("src/B", UP);
+        MetricsSnapshot.Resource c = new MetricsSnapshot.Resource("src/c", TestStatus.DECENT);
+
+        Map<String, MetricsSnapshot.Resource> in = new HashMap<>();
+        put(in, a);
+        put(in, upperB);
+        put(in, c);
+        Map<String, MetricsSnapshot.Resource> expected = new MetricsSnapshot(PROVIDER, "src", in).getStatuses();
+
+        // Sorted, and shuffled
+        for (List<MetricsSnapshot.Resource> order : asList(asList(a, b, upperB, c), asList(c, b, a, upperB))) {
+            MetricsSnapshot.Builder builder = MetricsSnapshot.builder(PROVIDER, "src", 1);
+            order.stream().forEach(builder::add);
+            MetricsSnapshot snapshot = builder.build();
+
+            assertEquals(expected, snapshot.getStatuses());
+            assertEquals(asList("src/a", "src/B", "src/c"), new ArrayList<>(snapshot.getStatuses().keySet()));
+        }
+
+        MetricsSnapshot.Builder builder = MetricsSnapshot.builder(PROVIDER, "src");
+        assertThrows(IllegalArgumentException.class, () -> builder.add(new MetricsSnapshot.Resource("other/a", UP)));
+        assertThrows(IllegalArgumentException.class, () -> MetricsSnapshot.builder(PROVIDER, "in valid"));
+        assertEquals(0, builder.build().getStatuses().size());
+    }
+
+    @Test
+    public void buildWithinLimits() {
+        String property = GatingMetrics.class.getName() + ".maxResources.limited";
+        System.setProperty(property, "2");
+        try {
+            // Not allocated up front
+            MetricsSnapshot.Builder builder = MetricsSnapshot.builder(PROVIDER, "limited", Integer.MAX_VALUE);
+            builder.add(new MetricsSnapshot.Resource("limited/a", UP));
+            builder.add(new MetricsSnapshot.Resource("limited/b", UP));
+            builder.add(new MetricsSnapshot.Resource("limited/B", DOWN)); // Replacing
+            assertThrows(IllegalArgumentException.class, () -> builder.add(new MetricsSnapshot.Resource("limited/c", UP)));
+            assertEquals(2, builder.build().size());
+        } finally {
+            System.clearProperty(property);
+        }
+    }
+
+    private static void put(Map<String, MetricsSnapshot.Resource> map, MetricsSnapshot.Resource resource) {
+        map.put(resource.getName(), resource);
+    }
+}
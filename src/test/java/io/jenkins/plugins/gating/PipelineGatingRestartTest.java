@@ -21,15 +21,42 @@
  */
 package io.jenkins.plugins.gating;
 
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
 import org.jenkinsci.plugins.workflow.cps.CpsFlowDefinition;
 import org.jenkinsci.plugins.workflow.job.WorkflowJob;
+import org.junit.After;
 import org.junit.Rule;
 import org.junit.Test;
+import org.jvnet.hudson.test.LoggerRule;
 import org.jvnet.hudson.test.RestartableJenkinsRule;
 
+import java.lang.reflect.Field;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Level;
+
+import static org.junit.Assert.assertEquals;
+
 public class PipelineGatingRestartTest {
 
     @Rule public final RestartableJenkinsRule j = new RestartableJenkinsRule();
+    @Rule public final LoggerRule logging = new LoggerRule().record(GatingStep.class, Level.INFO).capture(100);
+
+    // Report the resource available as Jenkins starts, before the pipelines resume
+    private static volatile boolean availableOnStartup;
+
+    @Initializer(after = InitMilestone.EXTENSIONS_AUGMENTED, before = InitMilestone.JOB_LOADED)
+    public static void reportAvailableOnStartup() {
+        if (availableOnStartup) {
+            Utils.setStatus(Utils.snapshot("foo/bar/baz", ResourceStatus.Category.UP));
+        }
+    }
+
+    @After
+    public void resetAvailableOnStartup() {
+        availableOnStartup = false;
+    }
 
     @Test
     public void restartBlocked() {
@@ -65,4 +92,49 @@ public class PipelineGatingRestartTest {
             r[0].await("Bafter");
         });
     }
+
+    @Test
+    public void resumeProgramStateOfOlderVersion() {
+        PipelineGatingTest.Runner[] r = new PipelineGatingTest.Runner[1];
+        j.then(j -> {
+            WorkflowJob w = j.jenkins.createProject(WorkflowJob.class, "w");
+            w.setDefinition(new CpsFlowDefinition(
+                    "requireResources(resources: ['foo/bar/baz']) { echo 'Binside' }; echo 'Bafter'", true
+            ));
+
+            r[0] = new PipelineGatingTest.Runner(w, j);
+            r[0].await("Some resources are not available: foo/bar/baz is UNKNOWN");
+            downgradeBlockedExecutions();
+            availableOnStartup = true;
+        });
+
+        j.then(j -> {
+            // No update comes after the step resumed, only the pass over the resumed steps can unblock it
+            assertEquals(ResourceStatus.Category.UP, GatingMetrics.get().getStatusOfAllResources().get("foo/bar/baz").getStatus());
+            Utils.await(() -> logging.getMessages().contains("Rechecking 1 resumed requireResources steps"));
+
+            r[0].await("Binside");
+            r[0].await("Bafter");
+        });
+    }
+
+    /**
+     * Make the blocked executions serialize as older versions did, with the whole step instead of the resource names.
+     */
+    private static void downgradeBlockedExecutions() throws Exception {
+        Field blockedExecutions = GatingStep.class.getDeclaredField("blockedExecutions");
+        blockedExecutions.setAccessible(true);
+        List<?> executions = (List<?>) blockedExecutions.get(null);
+        synchronized (executions) {
+            for (Object execution : executions) {
+                Field resources = execution.getClass().getDeclaredField("resources");
+                resources.setAccessible(true);
+                Field gatingStep = execution.getClass().getDeclaredField("gatingStep");
+                gatingStep.setAccessible(true);
+
+                gatingStep.set(execution, new GatingStep(Arrays.asList((String[]) resources.get(execution))));
+                resources.set(execution, null);
+            }
+        }
+    }
 }
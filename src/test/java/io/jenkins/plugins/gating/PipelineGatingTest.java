@@ -66,8 +66,9 @@ public class PipelineGatingTest {
         assertEquals(asList("foo/bar/baz", "foo/red/sox"), rrp.getResources());
 
         target.scheduleBuild2(0);
-        Thread.sleep(1000);
-        Queue.Item item = j.getInstance().getQueue().getItem(target);
+        Queue queue = j.getInstance().getQueue();
+        Utils.await(() -> queue.getItem(target) != null && queue.getItem(target).getCauseOfBlockage() != null);
+        Queue.Item item = queue.getItem(target);
 
         assertThat(item.getCauseOfBlockage(), Matchers.instanceOf(ResourceBlockage.class));
 
@@ -117,6 +118,22 @@ public class PipelineGatingTest {
         j.assertBuildStatusSuccess(r.run);
     }
 
+    @Test
+    public void warnWhenBlockedInsideNode() throws Exception {
+        WorkflowJob w = j.jenkins.createProject(WorkflowJob.class, "w");
+        w.setDefinition(new CpsFlowDefinition(
+                "node { requireResources(resources: ['foo/bar/baz']) { echo 'Binside' } }", true
+        ));
+
+        Runner r = new Runner(w, j);
+        r.await("Warning: requireResources is waiting inside of a node block", "Binside");
+
+        Utils.setStatus(Utils.snapshot("foo/bar/baz", UP));
+
+        r.await("Binside");
+        j.assertBuildStatusSuccess(j.waitForCompletion(r.run));
+    }
+
     @Test
     public void passStepWhenUp() throws Exception {
         Utils.setStatus(Utils.snapshot(
@@ -132,6 +149,23 @@ public class PipelineGatingTest {
         j.buildAndAssertSuccess(w);
     }
 
+    @Test
+    @WithTimeout(60)
+    public void unblockWhileStarting() throws Exception {
+        WorkflowJob w = j.jenkins.createProject(WorkflowJob.class, "w");
+        w.setDefinition(new CpsFlowDefinition(
+                "requireResources(resources: ['foo/bar/baz']) { echo 'Binside' }", true
+        ));
+
+        // Available after the step found it missing, and before it registered as blocked
+        GatingStep.beforeRegistering = () -> Utils.setStatus(Utils.snapshot("foo/bar/baz", UP));
+        try {
+            j.assertBuildStatusSuccess(w.scheduleBuild2(0));
+        } finally {
+            GatingStep.beforeRegistering = null;
+        }
+    }
+
     public static final class Runner {
 
         private final WorkflowJob job;
@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) Red Hat, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.jenkins.plugins.gating;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.TestExtension;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import static io.jenkins.plugins.gating.FreestyleGatingTest.RES1;
+import static io.jenkins.plugins.gating.FreestyleGatingTest.RES2;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertThrows;
+
+public class SharedMetricsStoreTest {
+
+    @Rule public final JenkinsRule j = new JenkinsRule();
+    @Rule public final TemporaryFolder tmp = new TemporaryFolder();
+
+    @TestExtension
+    public static final class Provider implements MetricsProvider {
+        @Override
+        public @Nonnull Set<String> getLabels() {
+            return Collections.singleton("statuspage");
+        }
+    }
+
+    @Test
+    public void publishChangedSnapshots() throws Exception {
+        Path dir = tmp.getRoot().toPath();
+        SharedMetricsStore store = SharedMetricsStore.get();
+        store.setDirectory(dir.toString());
+        store.setMode(SharedMetricsStore.Mode.PUBLISH);
+        j.configRoundtrip(); // Applied once submitted
+
+        Map<String, MetricsSnapshot.Resource> resources = new HashMap<>();
+        resources.put(RES1, new MetricsSnapshot.Resource(RES1, TestStatus.DECENT, "Slow", 3, Collections.singletonMap("latency", 42D)));
+        resources.put(RES2, new MetricsSnapshot.Resource(RES2, ResourceStatus.Category.UP));
+        MetricsSnapshot snapshot = Utils.snapshot(resources);
+        Utils.setStatus(snapshot);
+
+        Path first = dir.resolve("statuspage.1.snapshot");
+        Utils.await(() -> Files.exists(first));
+        MetricsSnapshot published = SharedMetricsStore.read(first, snapshot.getProvider());
+        assertEquals("statuspage", published.getSourceLabel());
+        assertEquals(snapshot.getStatuses(), published.getStatuses());
+
+        // The previous version is kept for readers still mapping it
+        Utils.setStatus(Utils.snapshot(RES1, TestStatus.OK));
+        Utils.setStatus(Utils.snapshot(RES1, TestStatus.BELLY_UP));
+        Utils.await(() -> Files.exists(dir.resolve("statuspage.3.snapshot")));
+        assertFalse(Files.exists(first));
+        assertEquals(TestStatus.BELLY_UP, SharedMetricsStore.read(dir.resolve("statuspage.3.snapshot"), store).getStatuses().get(RES1).getStatus());
+    }
+
+    @Test
+    public void consumeVersionedSnapshots() throws Exception {
+        Path dir = tmp.getRoot().toPath();
+        SharedMetricsStore store = SharedMetricsStore.get();
+        store.setDirectory(dir.toString());
+        store.setConsumedLabels("shared, other");
+        store.setMode(SharedMetricsStore.Mode.CONSUME);
+        j.configRoundtrip();
+
+        GatingMetrics gm = GatingMetrics.get();
+        SharedMetricsStore.write(dir, Utils.snapshot(store, "shared/a", ResourceStatus.Category.UP), 1);
+        Utils.await(() -> gm.getMetrics().containsKey("shared"));
+        assertSame(store, gm.getMetrics().get("shared").getProvider());
+
+        SharedMetricsStore.write(dir, Utils.snapshot(store, "shared/a", ResourceStatus.Category.DOWN), 2);
+        Utils.await(() -> gm.getMetrics().get("shared").getStatuses().get("shared/a").getStatus() == ResourceStatus.Category.DOWN);
+
+        // Older versions and unconsumed labels are ignored
+        SharedMetricsStore.write(dir, Utils.snapshot(store, "shared/a", ResourceStatus.Category.UP), 1);
+        SharedMetricsStore.write(dir, Utils.snapshot(store, "ignored/a", ResourceStatus.Category.UP), 1);
+        SharedMetricsStore.write(dir, Utils.snapshot(store, "other/a", ResourceStatus.Category.UP), 1);
+        Utils.await(() -> gm.getMetrics().containsKey("other"));
+        assertEquals(ResourceStatus.Category.DOWN, gm.getMetrics().get("shared").getStatuses().get("shared/a").getStatus());
+        assertFalse(gm.getMetrics().containsKey("ignored"));
+    }
+
+    @Test
+    public void rejectCorruptedSnapshot() throws Exception {
+        Path dir = tmp.getRoot().toPath();
+        SharedMetricsStore store = SharedMetricsStore.get();
+        Path file = SharedMetricsStore.write(dir, Utils.snapshot(store, "shared/a", ResourceStatus.Category.UP), 1);
+
+        // Length of the source label, after the magic number and the version
+        byte[] bytes = Files.readAllBytes(file);
+        ByteBuffer.wrap(bytes).putInt(12, Integer.MAX_VALUE);
+        Files.write(file, bytes);
+
+        IOException ex = assertThrows(IOException.class, () -> SharedMetricsStore.read(file, store));
+        assertThat(ex.getMessage(), containsString("Invalid string length"));
+    }
+}
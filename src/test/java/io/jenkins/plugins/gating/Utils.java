@@ -22,14 +22,29 @@
 package io.jenkins.plugins.gating;
 
 import com.google.common.collect.ImmutableSet;
+import hudson.ExtensionList;
+import jenkins.model.Jenkins;
 
 import javax.annotation.Nonnull;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.assertTrue;
 
 public class Utils {
 
+    /**
+     * Wait up to 10 seconds for the condition to hold.
+     */
+    static void await(BooleanSupplier condition) throws InterruptedException {
+        for (int i = 0; !condition.getAsBoolean(); i++) {
+            assertTrue("Condition not met in time", i < 100);
+            Thread.sleep(100);
+        }
+    }
+
     static void setStatus(Map<String, MetricsSnapshot.Resource> status) {
         GatingMetrics.get().update(snapshot(status));
     }
@@ -62,12 +77,24 @@ public class Utils {
     public static MetricsSnapshot snapshot(Map<String, MetricsSnapshot.Resource> resources) {
         String name = resources.keySet().iterator().next();
         String sourceLabel = name.replaceAll("/.*", "");
-        MetricsProvider provider = new MetricsProvider() {
+        return snapshot(providerOf(sourceLabel), resources);
+    }
+
+    /**
+     * The provider claiming the label, as reports from other providers are rejected. Ad-hoc one if there is none.
+     */
+    private static MetricsProvider providerOf(String sourceLabel) {
+        if (Jenkins.getInstanceOrNull() != null) {
+            for (MetricsProvider provider : ExtensionList.lookup(MetricsProvider.class)) {
+                if (provider.getLabels().contains(sourceLabel)) return provider;
+            }
+        }
+
+        return new MetricsProvider() {
             @Override public @Nonnull Set<String> getLabels() {
                 return ImmutableSet.of(sourceLabel);
             }
         };
-        return snapshot(provider, resources);
     }
 
     public static MetricsSnapshot snapshot(MetricsProvider provider, String name, ResourceStatus rs) {